@@ -0,0 +1,268 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+/**
+ * Limits the background time, the wake lock time and the idle time of a
+ * background session. Once a budget is exhausted the session winds down in
+ * stages: first the wake lock gets released, then the notification gets
+ * removed and finally the service gets stopped. The stages after the wake
+ * lock release are timed by an alarm, as the main thread does not run while
+ * the device sleeps.
+ */
+final class BackgroundBudget {
+
+    /**
+     * Gets notified about every stage of the wind-down.
+     */
+    interface Listener
+    {
+        /**
+         * Called on the main thread when the next stage is due.
+         *
+         * @param stage  One of the STAGE_* constants.
+         * @param reason The exhausted budget: time, wakelock or idle.
+         */
+        void onWindDown (int stage, String reason);
+    }
+
+    // Release the wake lock of the service
+    static final int STAGE_WAKE_LOCK = 1;
+
+    // Remove the notification and leave the foreground state
+    static final int STAGE_SILENT = 2;
+
+    // Stop the service
+    static final int STAGE_STOP = 3;
+
+    // Names of the stages in JS
+    static final String[] STAGE_NAMES = { null, "wakelock", "silent", "stop" };
+
+    // Max time in ms between two checks, to notice activity in between
+    private static final long MAX_CHECK_INTERVAL = 30 * 1000;
+
+    // Realtime of the last call from JS or native task
+    private static volatile long lastActivity = SystemClock.elapsedRealtime();
+
+    // Used to check the budgets on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Checks the budgets
+    private final Runnable check = this::check;
+
+    // Alarm for the next stage of the wind-down, created on first use
+    private AlarmManager.OnAlarmListener alarm;
+
+    // Used to find out if a lease is active
+    private final Context context;
+
+    // Gets notified about the stages
+    private final Listener listener;
+
+    // Max background time in ms or 0 if unlimited
+    private final long maxTime;
+
+    // Max time in ms the wake locks may be held or 0 if unlimited
+    private final long maxWakeLockTime;
+
+    // Max time in ms without activity or 0 if unlimited
+    private final long maxIdleTime;
+
+    // Time in ms between two stages of the wind-down
+    private final long interval;
+
+    // Realtime when the session started
+    private long startedAt;
+
+    // The reached stage or 0 if no budget is exhausted yet
+    private int stage = 0;
+
+    // The exhausted budget
+    private String reason;
+
+    /**
+     * Create the budget from the config settings.
+     *
+     * @param context  The context used to look up the leases.
+     * @param settings The config settings.
+     * @param listener Gets notified about the stages.
+     */
+    BackgroundBudget (Context context, JSONObject settings, Listener listener)
+    {
+        this.context         = context.getApplicationContext();
+        this.listener        = listener;
+        this.maxTime         = settings.optLong("maxBackgroundTime", 0);
+        this.maxWakeLockTime = settings.optLong("maxWakeLockTime", 0);
+        this.maxIdleTime     = settings.optLong("maxIdleTime", 0);
+        this.interval        = settings.optLong("windDownInterval", 60000);
+    }
+
+    /**
+     * Record a call from JS or a native task.
+     */
+    static void touch()
+    {
+        lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns true if any budget has been configured.
+     */
+    boolean isEnabled()
+    {
+        return maxTime > 0 || maxWakeLockTime > 0 || maxIdleTime > 0;
+    }
+
+    /**
+     * Start to watch the budgets of the session.
+     */
+    void start()
+    {
+        if (!isEnabled())
+            return;
+
+        startedAt = SystemClock.elapsedRealtime();
+        stage     = 0;
+        touch();
+        handler.postDelayed(check, nextCheck(startedAt));
+    }
+
+    /**
+     * Stop to watch the budgets.
+     */
+    void stop()
+    {
+        handler.removeCallbacks(check);
+
+        if (alarm != null) {
+            getAlarmManager().cancel(alarm);
+        }
+    }
+
+    /**
+     * Enter the next stage if a budget is exhausted, otherwise check again
+     * once the first budget could be exhausted.
+     */
+    private void check()
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        if (stage == 0) {
+            reason = getExhaustedBudget(now);
+
+            if (reason == null) {
+                handler.postDelayed(check, nextCheck(now));
+                return;
+            }
+        }
+
+        stage++;
+        listener.onWindDown(stage, reason);
+
+        if (stage < STAGE_STOP) {
+            scheduleNextStage();
+        }
+    }
+
+    /**
+     * Schedule the next stage of the wind-down. Once the wake lock is gone
+     * the device may sleep, so the stage gets timed by a wakeup alarm which
+     * calls back on the main thread. Listener alarms don't need the exact
+     * alarm permission.
+     */
+    private void scheduleNextStage()
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            handler.postDelayed(check, interval);
+            return;
+        }
+
+        if (alarm == null) {
+            alarm = this::check;
+        }
+
+        getAlarmManager().setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + interval,
+                "backgroundmode:budget", alarm, handler);
+    }
+
+    /**
+     * Returns the alarm manager.
+     */
+    private AlarmManager getAlarmManager()
+    {
+        return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    /**
+     * Returns the name of the exhausted budget or null if none.
+     *
+     * @param now The current realtime.
+     */
+    private String getExhaustedBudget (long now)
+    {
+        if (maxTime > 0 && now - startedAt >= maxTime)
+            return "time";
+
+        if (maxWakeLockTime > 0 && BackgroundSession.getWakeLockTime() >= maxWakeLockTime)
+            return "wakelock";
+
+        if (maxIdleTime > 0 && now - lastActivity >= maxIdleTime
+                && !WakeLockManager.get(context).isHeld(BackgroundSession.LEASE_LOCK))
+            return "idle";
+
+        return null;
+    }
+
+    /**
+     * Returns the delay in ms until the first budget could be exhausted.
+     *
+     * @param now The current realtime.
+     */
+    private long nextCheck (long now)
+    {
+        long delay = MAX_CHECK_INTERVAL;
+
+        if (maxTime > 0) {
+            delay = Math.min(delay, startedAt + maxTime - now);
+        }
+
+        if (maxWakeLockTime > 0) {
+            delay = Math.min(delay, maxWakeLockTime - BackgroundSession.getWakeLockTime());
+        }
+
+        if (maxIdleTime > 0) {
+            delay = Math.min(delay, lastActivity + maxIdleTime - now);
+        }
+
+        return Math.max(delay, 1000);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.content.Context.JOB_SCHEDULER_SERVICE;
+
+/**
+ * Runs the background work as periodic job in silent mode instead of
+ * keeping a started service alive, which newer Android versions kill
+ * quickly. Each run is handed over to the listener and ends once the
+ * listener calls finish() with the run's ID.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class BackgroundJobService extends JobService {
+
+    /**
+     * Gets notified about every run of the job.
+     */
+    interface Listener
+    {
+        /**
+         * Called on the main thread when the job starts.
+         *
+         * @param runId The ID to pass to finish().
+         *
+         * @return false if the run has nothing to do.
+         */
+        boolean onJobStarted (int runId);
+    }
+
+    // Fixed ID of the periodic job
+    static final int JOB_ID = -574543955;
+
+    // Default period of the job in ms
+    private static final long DEFAULT_PERIOD = 15 * 60 * 1000;
+
+    // Counter for the IDs of the runs
+    private static final AtomicInteger runIds = new AtomicInteger();
+
+    // Parameters of the running jobs by their run ID
+    private static final Map<Integer, Run> runs = new ConcurrentHashMap<>();
+
+    // Receives the runs of the job
+    private static volatile Listener listener;
+
+    /**
+     * Returns true if the settings ask for the job scheduler.
+     *
+     * @param settings The config settings
+     */
+    static boolean isEnabled (JSONObject settings)
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && settings.optBoolean("silent", false)
+                && settings.optBoolean("useJobScheduler", false);
+    }
+
+    /**
+     * Set the listener which receives the runs of the job.
+     *
+     * @param jobListener The listener or null to remove it.
+     */
+    static void setListener (Listener jobListener)
+    {
+        listener = jobListener;
+    }
+
+    /**
+     * Schedule the periodic job.
+     *
+     * @param context  The context used to get the job scheduler.
+     * @param settings The config settings with the period and constraints.
+     *
+     * @throws IllegalStateException if the job could not be scheduled.
+     */
+    static void schedule (Context context, JSONObject settings)
+    {
+        long period    = settings.optLong("jobPeriod", DEFAULT_PERIOD);
+        String network = settings.optString("jobNetwork", "none");
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            period = Math.max(period, JobInfo.getMinPeriodMillis());
+        }
+
+        ComponentName service = new ComponentName(context, BackgroundJobService.class);
+        JobInfo job = new JobInfo.Builder(JOB_ID, service)
+                .setPeriodic(period)
+                .setRequiredNetworkType(getNetworkType(network))
+                .setRequiresCharging(settings.optBoolean("jobCharging", false))
+                .build();
+
+        if (getScheduler(context).schedule(job) != JobScheduler.RESULT_SUCCESS)
+            throw new IllegalStateException("Job could not be scheduled");
+    }
+
+    /**
+     * Cancel the periodic job and end all its running runs, so that the
+     * scheduler releases their wake locks right away.
+     *
+     * @param context The context used to get the job scheduler.
+     */
+    static void cancel (Context context)
+    {
+        for (Integer runId : runs.keySet()) {
+            finish(runId);
+        }
+
+        getScheduler(context).cancel(JOB_ID);
+    }
+
+    /**
+     * End the run of the job.
+     *
+     * @param runId The ID of the run.
+     *
+     * @return false if there was no such run.
+     */
+    static boolean finish (int runId)
+    {
+        Run run = runs.remove(runId);
+
+        if (run == null)
+            return false;
+
+        run.service.jobFinished(run.params, false);
+
+        return true;
+    }
+
+    /**
+     * Called by the system when the job is due.
+     */
+    @Override
+    public boolean onStartJob (JobParameters params)
+    {
+        Listener jobListener = listener;
+        int runId            = runIds.incrementAndGet();
+
+        if (jobListener == null)
+            return false;
+
+        runs.put(runId, new Run(this, params));
+
+        if (jobListener.onJobStarted(runId))
+            return true;
+
+        runs.remove(runId);
+
+        return false;
+    }
+
+    /**
+     * Called by the system if the constraints are no longer met.
+     */
+    @Override
+    public boolean onStopJob (JobParameters params)
+    {
+        for (Map.Entry<Integer, Run> entry : runs.entrySet()) {
+            if (entry.getValue().params == params) {
+                runs.remove(entry.getKey());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the network type constant from a string.
+     *
+     * @param type one of 'none', 'any' or 'unmetered'
+     */
+    private static int getNetworkType (String type)
+    {
+        if (type.equals("any")) {
+            return JobInfo.NETWORK_TYPE_ANY;
+        } else if (type.equals("unmetered")) {
+            return JobInfo.NETWORK_TYPE_UNMETERED;
+        } else {
+            return JobInfo.NETWORK_TYPE_NONE;
+        }
+    }
+
+    /**
+     * Returns the job scheduler service.
+     *
+     * @param context The context used to get the service.
+     */
+    private static JobScheduler getScheduler (Context context)
+    {
+        return (JobScheduler) context.getSystemService(JOB_SCHEDULER_SERVICE);
+    }
+
+    /**
+     * A single run of the job.
+     */
+    private static final class Run
+    {
+        // The service which runs the job
+        final JobService service;
+
+        // The parameters of the run
+        final JobParameters params;
+
+        Run (JobService service, JobParameters params)
+        {
+            this.service = service;
+            this.params  = params;
+        }
+    }
+}
@@ -25,14 +25,32 @@ import android.app.Activity;
 import android.content.*;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Base64;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.PluginResult.Status;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import de.appplant.cordova.plugin.background.ForegroundService.ForegroundBinder;
 
 import static android.content.Context.BIND_AUTO_CREATE;
@@ -40,12 +58,53 @@ import static de.appplant.cordova.plugin.background.BackgroundModeExt.clearKeygu
 
 public class BackgroundMode extends CordovaPlugin {
 
-    // Event types for callbacks
-    private enum Event { ACTIVATE, DEACTIVATE, FAILURE }
-
     // Plugin namespace
     private static final String JS_NAMESPACE = "cordova.plugins.backgroundMode";
 
+    // Event types for callbacks with their precomputed script fragments
+    private enum Event
+    {
+        ACTIVATE(true), DEACTIVATE(false), FAILURE(false), JOB(true), STALL(true),
+        WINDDOWN(true), WAKEUP(null);
+
+        // Name of the event in JS
+        final String jsName;
+
+        // Script which only syncs the active flag or null if the event
+        // does not change it
+        final String syncScript;
+
+        // Script part in front of the first parameter
+        final String prefix;
+
+        // Script part between the first and the second parameter
+        final String infix;
+
+        // Script part behind the second parameter
+        final String suffix;
+
+        // Complete script for the event without parameters
+        final String script;
+
+        Event (Boolean active)
+        {
+            jsName     = name().toLowerCase(Locale.ROOT);
+            syncScript = active == null ? null
+                    : "javascript:" + JS_NAMESPACE + "._setActive(" + active + ")";
+            prefix     = (syncScript == null ? "javascript:" : syncScript + ";")
+                    + JS_NAMESPACE + ".on('" + jsName + "', ";
+            infix      = ");" + JS_NAMESPACE + ".fireEvent('" + jsName + "',";
+            suffix     = ");";
+            script     = prefix + "null" + infix + "null" + suffix;
+        }
+    }
+
+    // Realtime when the class got loaded, right before its construction
+    private static final long LOADED_AT = SystemClock.elapsedRealtime();
+
+    // Cookie of the async trace section between bind and connect
+    private static final int BIND_TRACE_COOKIE = 1;
+
     // Flag indicates if the app is in background or foreground
     private boolean inBackground = false;
 
@@ -55,11 +114,53 @@ public class BackgroundMode extends CordovaPlugin {
     // Flag indicates if the service is bind
     private boolean isBind = false;
 
+    // Flag indicates if the periodic job is scheduled instead of the service
+    private boolean isScheduled = false;
+
+    // Flag indicates if the deferred initialization has been done
+    private boolean isPrepared = false;
+
+    // Time in ms from loading the plugin until initialize is done
+    private long initializeTime = 0;
+
+    // Time in ms the plugin spent in the deferred initialization
+    private long prepareTime = 0;
+
     // Default settings for the notification
-    private static JSONObject defaultSettings = new JSONObject();
+    private static volatile JSONObject defaultSettings = new JSONObject();
+
+    // Version of the default settings patched by JS
+    private int defaultsVersion = 0;
+
+    // Settings of the running notification patched by JS
+    private JSONObject notificationSettings = new JSONObject();
+
+    // Version of the settings of the running notification
+    private int settingsVersion = 0;
+
+    // Binary records exchanged with the web view
+    private static final RecordBuffer records = new RecordBuffer();
 
     // Service that keeps the app awake
-    private ForegroundService service;
+    private volatile ForegroundService service;
+
+    // Events with a listener in JS or null if not reported yet
+    private volatile Set<String> observedEvents;
+
+    // Pings the web view while in background
+    private WebViewWatchdog watchdog;
+
+    // Winds down the session once a budget is exhausted
+    private BackgroundBudget budget;
+
+    // Reused to render the scripts of events with parameters
+    private final StringBuilder eventScript = new StringBuilder(256);
+
+    // Latest requested progress, applied once the service is connected
+    private volatile ForegroundService.Progress progress;
+
+    // Latest settings to apply once the service is connected
+    private final AtomicReference<SettingsUpdate> pendingSettings = new AtomicReference<>();
 
     // Used to (un)bind the service to with the activity
     private final ServiceConnection connection = new ServiceConnection()
@@ -69,30 +170,71 @@ public class BackgroundMode extends CordovaPlugin {
         {
             ForegroundBinder binder = (ForegroundBinder) service;
             BackgroundMode.this.service = binder.getService();
+            Tracer.endAsync("bind", BIND_TRACE_COOKIE);
+            applyPendingSettings();
+            applyPendingProgress();
+            ListenerRegistry.serviceConnected();
         }
 
         @Override
         public void onServiceDisconnected (ComponentName name)
         {
+            BackgroundMode.this.service = null;
+            SessionHistory.record(cordova.getActivity(),
+                    SessionHistory.TYPE_SERVICE_KILL, 0, 0);
             fireEvent(Event.FAILURE, "'service disconnected'");
+            DiagnosticLog.error("plugin", "disconnect", "Service disconnected", null);
+            ListenerRegistry.failure("service disconnected");
         }
     };
 
+    /**
+     * Called after plugin construction and fields have been initialized.
+     * Everything not needed before the mode gets enabled is deferred to
+     * prepare() to keep the costs for the app start low. The startup costs
+     * are measured from loading the class, so that its static and field
+     * initialization and pluginInitialize() count as well.
+     */
     @Override
     public void initialize(CordovaInterface cordova, CordovaWebView webView) {
         super.initialize(cordova, webView);
+
+        initializeTime = SystemClock.elapsedRealtime() - LOADED_AT;
+        Metrics.set(Metrics.STARTUP_MS, initializeTime);
+    }
+
+    /**
+     * Deferred initialization done with the first enable or background
+     * transition.
+     */
+    private void prepare()
+    {
+        if (isPrepared)
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+
         IntentFilter filter = new IntentFilter();
         filter.addAction("com.backgroundmode.close" + cordova.getActivity().getPackageName());
         cordova.getActivity().registerReceiver(receiver, filter);
+        BackgroundJobService.setListener(this::onJobStarted);
+        ShutdownCoordinator.register("history",
+                () -> SessionHistory.flush(cordova.getActivity()));
 
+        isPrepared  = true;
+        prepareTime = SystemClock.elapsedRealtime() - start;
     }
 
     private BroadcastReceiver receiver = new BroadcastReceiver() {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            cordova.getActivity().finish();
+            Activity app = cordova.getActivity();
 
+            new Thread(() -> {
+                ShutdownCoordinator.run(app, getShutdownBudget(), true);
+                app.runOnUiThread(app::finish);
+            }).start();
         }
     };
 
@@ -109,6 +251,29 @@ public class BackgroundMode extends CordovaPlugin {
     @Override
     public boolean execute (String action, JSONArray args,
                             CallbackContext callback)
+    {
+        Tracer.begin("execute:", action);
+        BackgroundBudget.touch();
+
+        try {
+            return dispatch(action, args, callback);
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Executes the request.
+     *
+     * @param action   The action to execute.
+     * @param args     The exec() arguments.
+     * @param callback The callback context used when
+     *                 calling back into JavaScript.
+     *
+     * @return Returning false results in a "MethodNotFound" error.
+     */
+    private boolean dispatch (String action, JSONArray args,
+                              CallbackContext callback)
     {
         boolean validAction = true;
 
@@ -117,12 +282,77 @@ public class BackgroundMode extends CordovaPlugin {
             case "configure":
                 configure(args.optJSONObject(0), args.optBoolean(1));
                 break;
+            case "patch":
+                patch(args.optString(0), args.optInt(1), args.optJSONObject(2), callback);
+                return true;
+            case "compute":
+                compute(args, callback);
+                return true;
+            case "computeBatch":
+                computeBatch(args, callback);
+                return true;
             case "enable":
                 enableMode();
                 break;
             case "disable":
                 disableMode();
                 break;
+            case "append":
+            case "appendAll":
+            case "read":
+                runRecordAction(action, args, callback);
+                return true;
+            case "clear":
+                records.clear();
+                break;
+            case "progress":
+                updateProgress(args);
+                break;
+            case "count":
+                NotificationCounters.add(args.optString(0), args.optLong(1, 1));
+                break;
+            case "setCount":
+                NotificationCounters.set(args.optString(0), args.optLong(1));
+                break;
+            case "startup":
+                getStartupTrace(callback);
+                break;
+            case "metrics":
+                getMetrics(callback);
+                break;
+            case "listen":
+                setObservedEvents(args.optJSONArray(0));
+                break;
+            case "finishJob":
+                BackgroundJobService.finish(args.optInt(0));
+                break;
+            case "watchdog":
+                getWatchdogStats(callback);
+                break;
+            case "session":
+                getSessionReport(callback);
+                break;
+            case "history":
+                readHistory(args.optLong(0), args.optInt(1, 100), callback);
+                break;
+            case "batch":
+                runBatch(args, callback);
+                return true;
+            case "shutdownHook":
+                registerShutdownHook(args.optString(0), callback);
+                return true;
+            case "shutdownDone":
+                ShutdownCoordinator.jsDone(args.optString(0));
+                break;
+            case "kills":
+                getKillReport(args.optBoolean(0, true), callback);
+                break;
+            case "diagnostics":
+                readDiagnostics(args.optLong(0), args.optInt(1, 100), callback);
+                break;
+            case "dumpDiagnostics":
+                dumpDiagnostics(callback);
+                return true;
             default:
                 validAction = false;
         }
@@ -136,6 +366,197 @@ public class BackgroundMode extends CordovaPlugin {
         return validAction;
     }
 
+    /**
+     * Executes the binary record actions on the thread pool. The payloads are
+     * transferred as ArrayBuffer and decoded straight into a ByteBuffer.
+     *
+     * @param action   The action to execute.
+     * @param args     The exec() arguments.
+     * @param callback The callback context used when
+     *                 calling back into JavaScript.
+     */
+    private void runRecordAction (String action, JSONArray args,
+                                  CallbackContext callback)
+    {
+        cordova.getThreadPool().execute(() -> {
+            try {
+                CordovaArgs bytes = new CordovaArgs(args);
+                PluginResult res;
+
+                switch (action)
+                {
+                    case "append":
+                        res = new PluginResult(Status.OK,
+                                records.append(ByteBuffer.wrap(bytes.getArrayBuffer(0))));
+                        break;
+                    case "appendAll":
+                        res = new PluginResult(Status.OK,
+                                records.appendAll(ByteBuffer.wrap(bytes.getArrayBuffer(0))));
+                        break;
+                    default:
+                        res = new PluginResult(Status.OK,
+                                records.read(args.optBoolean(0)));
+                }
+
+                callback.sendPluginResult(res);
+            } catch (Exception e) {
+                callback.error(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Run a native operation on the compute pool.
+     *
+     * @param args     The operation, the input and if the input is binary.
+     * @param callback Invoked with the result.
+     */
+    private void compute (JSONArray args, CallbackContext callback)
+    {
+        try {
+            byte[] input = decodeInput(args.getString(1), args.optBoolean(2));
+
+            ComputePool.execute(cordova.getActivity(), args.getString(0), input,
+                    (result, error) -> callback.sendPluginResult(toPluginResult(result, error)));
+        } catch (Exception e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Run a native operation for each input, spread across the cores of the
+     * compute pool. The results are sent at once in the order of the inputs
+     * as multipart result. The batch is rejected upfront if it doesn't fit
+     * into the queue, so that no task keeps running for a failed batch.
+     *
+     * @param args     The operation, the inputs and their binary flags.
+     * @param callback Invoked with the list of results.
+     */
+    private void computeBatch (JSONArray args, CallbackContext callback)
+    {
+        try {
+            String name          = args.getString(0);
+            JSONArray inputs     = args.getJSONArray(1);
+            JSONArray binary     = args.optJSONArray(2);
+            int count            = inputs.length();
+            byte[][] data        = new byte[count][];
+            PluginResult[] parts = new PluginResult[count];
+            AtomicInteger left   = new AtomicInteger(count);
+
+            if (count == 0) {
+                callback.sendPluginResult(new PluginResult(Status.OK,
+                        Collections.<PluginResult>emptyList()));
+                return;
+            }
+
+            if (count > ComputePool.remainingCapacity()) {
+                callback.error("Batch exceeds the queue capacity");
+                return;
+            }
+
+            for (int i = 0; i < count; i++) {
+                data[i] = decodeInput(inputs.getString(i),
+                        binary != null && binary.optBoolean(i));
+            }
+
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+
+                ComputePool.execute(cordova.getActivity(), name, data[i], (result, error) -> {
+                    parts[index] = toPluginResult(result, error);
+
+                    if (left.decrementAndGet() == 0) {
+                        callback.sendPluginResult(
+                                new PluginResult(Status.OK, Arrays.asList(parts)));
+                    }
+                });
+            }
+        } catch (Exception e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the bytes of the input, which is either a string or a base64
+     * encoded ArrayBuffer.
+     *
+     * @param input  The input.
+     * @param binary Set to true if the input is base64 encoded.
+     */
+    private static byte[] decodeInput (String input, boolean binary)
+    {
+        if (binary)
+            return Base64.decode(input, Base64.DEFAULT);
+
+        return input.getBytes(ComputePool.UTF_8);
+    }
+
+    /**
+     * Returns the result of a compute task as plugin result. Failed tasks
+     * within a batch show up as {error: message}.
+     *
+     * @param result The result as byte[] or String.
+     * @param error  The error or null on success.
+     */
+    private static PluginResult toPluginResult (Object result, Exception error)
+    {
+        if (error != null) {
+            try {
+                return new PluginResult(Status.OK,
+                        new JSONObject().put("error", String.valueOf(error.getMessage())));
+            } catch (JSONException e) {
+                return new PluginResult(Status.ERROR);
+            }
+        }
+
+        if (result instanceof byte[])
+            return new PluginResult(Status.OK, (byte[]) result);
+
+        return new PluginResult(Status.OK, String.valueOf(result));
+    }
+
+    /**
+     * Register a JS hook which gets notified before the app gets closed.
+     *
+     * @param name     The name of the hook.
+     * @param callback The callback to notify the hook.
+     */
+    private void registerShutdownHook (String name, CallbackContext callback)
+    {
+        PluginResult res = new PluginResult(Status.NO_RESULT);
+
+        res.setKeepCallback(true);
+        ShutdownCoordinator.registerJs(name, callback);
+        callback.sendPluginResult(res);
+    }
+
+    /**
+     * Returns the time budget in ms for the shutdown hooks.
+     */
+    private static long getShutdownBudget()
+    {
+        return defaultSettings.optLong("shutdownBudget", ShutdownCoordinator.DEFAULT_BUDGET);
+    }
+
+    /**
+     * Executes the list of commands in sequence on the thread pool and
+     * invokes the callback with the results of all of them.
+     *
+     * @param args     The commands and the stop on error flag.
+     * @param callback The callback to invoke.
+     */
+    private void runBatch (JSONArray args, CallbackContext callback)
+    {
+        cordova.getThreadPool().execute(() -> {
+            try {
+                callback.success(Batch.run(webView, "BackgroundMode",
+                        args.getJSONArray(0), args.optBoolean(1)));
+            } catch (JSONException e) {
+                callback.error(e.getMessage());
+            }
+        });
+    }
+
     /**
      * Called when the system is about to start resuming a previous activity.
      *
@@ -144,11 +565,14 @@ public class BackgroundMode extends CordovaPlugin {
     @Override
     public void onPause(boolean multitasking)
     {
+        Tracer.begin("onPause");
+
         try {
             inBackground = true;
             startService();
         } finally {
             clearKeyguardFlags(cordova.getActivity());
+            Tracer.end();
         }
     }
 
@@ -157,7 +581,9 @@ public class BackgroundMode extends CordovaPlugin {
      */
     @Override
     public void onStop () {
+        Tracer.begin("onStop");
         clearKeyguardFlags(cordova.getActivity());
+        Tracer.end();
     }
 
     /**
@@ -168,8 +594,14 @@ public class BackgroundMode extends CordovaPlugin {
     @Override
     public void onResume (boolean multitasking)
     {
-        inBackground = false;
-        stopService();
+        Tracer.begin("onResume");
+
+        try {
+            inBackground = false;
+            stopService();
+        } finally {
+            Tracer.end();
+        }
     }
 
     /**
@@ -178,13 +610,25 @@ public class BackgroundMode extends CordovaPlugin {
     @Override
     public void onDestroy()
     {
+       Tracer.begin("onDestroy");
+
        try {
          //  Block of code to try
          stopService();
+
+         if (isPrepared) {
+           cordova.getActivity().unregisterReceiver(receiver);
+           BackgroundJobService.setListener(null);
+         }
        }
        catch(Exception e) {
-         //  Block of code to handle errors
+         DiagnosticLog.error("plugin", "destroy", "Could not stop the service", e);
        }
+       finally {
+         Tracer.end();
+       }
+        ShutdownCoordinator.runDetached(cordova.getActivity(), getShutdownBudget(), false);
+        WakeLockManager.get(cordova.getActivity()).releaseAll();
         android.os.Process.killProcess(android.os.Process.myPid());
     }
 
@@ -193,6 +637,7 @@ public class BackgroundMode extends CordovaPlugin {
      */
     private void enableMode()
     {
+        prepare();
         isDisabled = false;
 
         if (inBackground) {
@@ -224,6 +669,91 @@ public class BackgroundMode extends CordovaPlugin {
         }
     }
 
+    /**
+     * Apply the changed keys to the default settings or to the settings of
+     * the running notification. A delta has to be based on the version
+     * known by the native side, otherwise JS has to send a full snapshot
+     * with base version 0.
+     *
+     * @param target   Either 'defaults' or 'settings'.
+     * @param base     The version the changes are based on or 0.
+     * @param changes  The changed keys, null values remove the key.
+     * @param callback Invoked with the new version or an error on drift.
+     */
+    private synchronized void patch (String target, int base,
+                                     JSONObject changes, CallbackContext callback)
+    {
+        boolean isDefaults = target.equals("defaults");
+        int version        = isDefaults ? defaultsVersion : settingsVersion;
+
+        if (changes == null || (base != 0 && base != version)) {
+            callback.error("version");
+            return;
+        }
+
+        JSONObject patched = new JSONObject();
+        Set<String> keys   = base == 0 ? null : new HashSet<>();
+
+        try {
+            if (base != 0) {
+                copy(isDefaults ? defaultSettings : notificationSettings, patched);
+            }
+
+            for (Iterator<String> it = changes.keys(); it.hasNext();) {
+                String key = it.next();
+
+                if (changes.isNull(key)) {
+                    patched.remove(key);
+                } else {
+                    patched.put(key, changes.get(key));
+                }
+
+                if (keys != null) {
+                    keys.add(key);
+                }
+            }
+        } catch (JSONException e) {
+            callback.error(e.getMessage());
+            return;
+        }
+
+        if (isDefaults) {
+            defaultSettings = patched;
+            defaultsVersion = base + 1;
+        } else {
+            notificationSettings = patched;
+            settingsVersion      = base + 1;
+            updateNotification(patched, keys);
+        }
+
+        callback.success(base + 1);
+    }
+
+    /**
+     * Forget the settings of the notification once the service is stopped,
+     * so that JS has to send a full snapshot for the next one.
+     */
+    private synchronized void resetSettings()
+    {
+        notificationSettings = new JSONObject();
+        settingsVersion      = 0;
+    }
+
+    /**
+     * Copy all keys of the source into the target.
+     *
+     * @param source The object to copy.
+     * @param target The object to copy into.
+     */
+    private static void copy (JSONObject source, JSONObject target)
+            throws JSONException
+    {
+        for (Iterator<String> it = source.keys(); it.hasNext();) {
+            String key = it.next();
+            target.put(key, source.get(key));
+        }
+    }
+
     /**
      * Update the default settings for the notification.
      *
@@ -242,14 +772,188 @@ public class BackgroundMode extends CordovaPlugin {
     }
 
     /**
-     * Update the notification.
+     * Add a native listener which gets notified about the lifecycle of the
+     * background mode. Adding the same listener again replaces its executor.
+     *
+     * @param listener The listener to add.
+     * @param executor The executor to call the listener on.
+     */
+    public static void addListener (BackgroundModeListener listener, Executor executor)
+    {
+        ListenerRegistry.add(listener, executor);
+    }
+
+    /**
+     * Remove a native listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public static void removeListener (BackgroundModeListener listener)
+    {
+        ListenerRegistry.remove(listener);
+    }
+
+    /**
+     * Update the notification. Until the service is connected only the latest
+     * settings are kept and applied once in onServiceConnected.
      *
      * @param settings The config settings
      */
     private void updateNotification(JSONObject settings)
     {
-        if (isBind) {
-            service.updateNotification(settings);
+        updateNotification(settings, null);
+    }
+
+    /**
+     * Update the notification. Until the service is connected only the latest
+     * settings are kept together with all keys changed in the meantime.
+     *
+     * @param settings The config settings
+     * @param keys     The changed keys or null to rebuild the notification.
+     */
+    private void updateNotification(JSONObject settings, Set<String> keys)
+    {
+        SettingsUpdate update = new SettingsUpdate(settings, keys);
+        SettingsUpdate pending;
+
+        if (!isBind)
+            return;
+
+        do {
+            pending = pendingSettings.get();
+        } while (!pendingSettings.compareAndSet(pending, update.mergeWith(pending)));
+
+        if (service != null) {
+            applyPendingSettings();
+        }
+    }
+
+    /**
+     * Apply the latest progress requested before the service got connected.
+     */
+    private void applyPendingProgress()
+    {
+        ForegroundService service           = this.service;
+        ForegroundService.Progress progress = this.progress;
+
+        if (service != null && progress != null) {
+            service.updateProgress(progress);
+        }
+    }
+
+    /**
+     * Apply the pending settings on the thread of the connected service.
+     */
+    private void applyPendingSettings()
+    {
+        ForegroundService service = this.service;
+        SettingsUpdate update     = pendingSettings.getAndSet(null);
+
+        if (service == null || update == null)
+            return;
+
+        service.post(() -> service.updateNotification(update.settings, update.keys));
+    }
+
+    /**
+     * Invokes the callback with the time in ms the plugin added to the app
+     * start and to the first enable.
+     *
+     * @param callback The callback to invoke.
+     */
+    private void getStartupTrace (CallbackContext callback)
+    {
+        try {
+            callback.success(new JSONObject()
+                    .put("initializeMs", initializeTime)
+                    .put("prepared", isPrepared)
+                    .put("prepareMs", prepareTime));
+        } catch (JSONException e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Update the list of events which have a listener in JS.
+     *
+     * @param events The names of the events.
+     */
+    private void setObservedEvents (JSONArray events)
+    {
+        Set<String> names = new HashSet<>();
+
+        if (events != null) {
+            for (int i = 0; i < events.length(); i++) {
+                names.add(events.optString(i));
+            }
+        }
+
+        observedEvents = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Fire the wakeup event for a scheduled wake-up which is due.
+     *
+     * @param wakeup The fired schedule.
+     */
+    void fireWakeup (JSONObject wakeup)
+    {
+        fireEvent(Event.WAKEUP, wakeup.toString());
+    }
+
+    /**
+     * Invokes the callback with the kills, restarts and downtime of the
+     * service since the last report.
+     *
+     * @param reset    Set to true to start counting again.
+     * @param callback The callback to invoke.
+     */
+    private void getKillReport (boolean reset, CallbackContext callback)
+    {
+        try {
+            callback.success(ServiceMonitor.report(cordova.getActivity(), reset));
+        } catch (JSONException e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Invokes the callback with all counters and gauges of the plugin.
+     *
+     * @param callback The callback to invoke.
+     */
+    private void getMetrics (CallbackContext callback)
+    {
+        try {
+            callback.success(Metrics.toJSON());
+        } catch (JSONException e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Update the progress shown by the notification. Until the service is
+     * connected only the latest progress is kept.
+     *
+     * @param args The current value, max value, indeterminate flag and ETA
+     *             text or an empty list to remove the progress.
+     */
+    private void updateProgress (JSONArray args)
+    {
+        ForegroundService.Progress progress = null;
+
+        if (args.length() > 0) {
+            progress = new ForegroundService.Progress(
+                    args.optInt(1, 100), args.optInt(0), args.optBoolean(2),
+                    args.isNull(3) ? null : args.optString(3));
+        }
+
+        ForegroundService service = this.service;
+
+        this.progress = progress;
+
+        if (isBind && service != null) {
+            service.updateProgress(progress);
         }
     }
 
@@ -261,20 +965,47 @@ public class BackgroundMode extends CordovaPlugin {
     {
         Activity context = cordova.getActivity();
 
-        if (isDisabled || isBind)
+        if (isDisabled || isBind || isScheduled)
             return;
 
+        prepare();
+        BackgroundSession.begin();
+
+        if (BackgroundJobService.isEnabled(defaultSettings)) {
+            scheduleJob();
+            return;
+        }
+
         Intent intent = new Intent(context, ForegroundService.class);
 
+        boolean bound = false;
+
+        Tracer.begin("bindService");
+
         try {
-            context.bindService(intent, connection, BIND_AUTO_CREATE);
+            Tracer.beginAsync("bind", BIND_TRACE_COOKIE);
+            bound = context.bindService(intent, connection, BIND_AUTO_CREATE);
             fireEvent(Event.ACTIVATE, null);
+            ListenerRegistry.activate();
             context.startService(intent);
         } catch (Exception e) {
             fireEvent(Event.FAILURE, String.format("'%s'", e.getMessage()));
+            ListenerRegistry.failure(e.getMessage());
+            SessionHistory.record(context, SessionHistory.TYPE_FAILURE, 0, 0);
+            DiagnosticLog.error("plugin", "start", "Could not start the service", e);
+        } finally {
+            // The service won't connect and end the section
+            if (!bound) {
+                Tracer.endAsync("bind", BIND_TRACE_COOKIE);
+            }
+
+            Tracer.end();
         }
 
         isBind = true;
+        ServiceMonitor.expect(context, true);
+        startWatchdog();
+        startBudget();
     }
 
     /**
@@ -286,15 +1017,312 @@ public class BackgroundMode extends CordovaPlugin {
         Activity context = cordova.getActivity();
         Intent intent    = new Intent(context, ForegroundService.class);
 
-        if (!isBind) return;
+        if (isScheduled) {
+            cancelJob();
+            endSession();
+            return;
+        }
 
-        fireEvent(Event.DEACTIVATE, null);
-        context.unbindService(connection);
-        context.stopService(intent);
+        if (!isBind) {
+            stopRestartedService(context, intent);
+            return;
+        }
+
+        ServiceMonitor.expect(context, false);
+        stopWatchdog();
+        stopBudget();
+        Tracer.begin("unbindService");
+
+        try {
+            // Unbound before the service got connected
+            if (service == null) {
+                Tracer.endAsync("bind", BIND_TRACE_COOKIE);
+            }
+
+            fireEvent(Event.DEACTIVATE, null);
+            ListenerRegistry.deactivate();
+            context.unbindService(connection);
+            context.stopService(intent);
+        } finally {
+            Tracer.end();
+        }
+
+        service = null;
+        progress = null;
+        pendingSettings.set(null);
+        resetSettings();
+        endSession();
 
         isBind = false;
     }
 
+    /**
+     * Stop the service if it has been restarted after a kill while the
+     * activity was gone, as the app is in foreground now.
+     *
+     * @param context The activity which is in foreground.
+     * @param intent  The intent of the service.
+     */
+    private void stopRestartedService (Activity context, Intent intent)
+    {
+        if (!ServiceMonitor.isAlive())
+            return;
+
+        ServiceMonitor.expect(context, false);
+        context.stopService(intent);
+    }
+
+    /**
+     * Start to watch the budgets of the session if any has been configured.
+     */
+    private void startBudget()
+    {
+        Activity context = cordova.getActivity();
+
+        budget = new BackgroundBudget(context, defaultSettings, this::onWindDown);
+
+        if (budget.isEnabled()) {
+            context.runOnUiThread(budget::start);
+        } else {
+            budget = null;
+        }
+    }
+
+    /**
+     * Stop to watch the budgets of the session.
+     */
+    private void stopBudget()
+    {
+        if (budget != null) {
+            budget.stop();
+            budget = null;
+        }
+    }
+
+    /**
+     * Called on the main thread for every stage of the wind-down once a
+     * budget of the session is exhausted.
+     *
+     * @param stage  One of the BackgroundBudget.STAGE_* constants.
+     * @param reason The exhausted budget.
+     */
+    private void onWindDown (int stage, String reason)
+    {
+        ForegroundService service = this.service;
+
+        fireEvent(Event.WINDDOWN, String.format("{stage:'%s',reason:'%s'}",
+                BackgroundBudget.STAGE_NAMES[stage], reason));
+        SessionHistory.record(cordova.getActivity(), SessionHistory.TYPE_WIND_DOWN, stage, 0);
+        DiagnosticLog.info("budget", BackgroundBudget.STAGE_NAMES[stage], "Wind-down by " + reason);
+
+        switch (stage)
+        {
+            case BackgroundBudget.STAGE_WAKE_LOCK:
+                WakeLockManager.get(cordova.getActivity())
+                        .release(BackgroundSession.SERVICE_LOCK);
+                break;
+            case BackgroundBudget.STAGE_SILENT:
+                if (service != null) {
+                    service.post(service::demote);
+                }
+                break;
+            case BackgroundBudget.STAGE_STOP:
+                stopService();
+                break;
+        }
+    }
+
+    /**
+     * Start to ping the web view if a watchdog interval has been configured.
+     */
+    private void startWatchdog()
+    {
+        long interval = defaultSettings.optLong("watchdogInterval", 0);
+        long timeout  = defaultSettings.optLong("watchdogTimeout", 5000);
+
+        if (interval <= 0)
+            return;
+
+        cordova.getActivity().runOnUiThread(() -> {
+            if (watchdog == null) {
+                watchdog = WebViewWatchdog.create(webView.getView(),
+                        waited -> fireEvent(Event.STALL, String.valueOf(waited)));
+            }
+
+            if (watchdog != null) {
+                watchdog.start(interval, timeout);
+            }
+        });
+    }
+
+    /**
+     * Stop to ping the web view.
+     */
+    private void stopWatchdog()
+    {
+        cordova.getActivity().runOnUiThread(() -> {
+            if (watchdog != null) {
+                watchdog.stop();
+            }
+        });
+    }
+
+    /**
+     * Invokes the callback with the power and CPU accounting of the running
+     * and the last background session.
+     *
+     * @param callback The callback to invoke.
+     */
+    private void getSessionReport (CallbackContext callback)
+    {
+        try {
+            callback.success(BackgroundSession.toJSON());
+        } catch (JSONException e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * End the background session and append it to the history.
+     */
+    private void endSession()
+    {
+        BackgroundSession session = BackgroundSession.end();
+
+        if (session == null)
+            return;
+
+        SessionHistory.record(cordova.getActivity(), SessionHistory.TYPE_SESSION,
+                session.getDuration(), (int) session.getCpuTime());
+    }
+
+    /**
+     * Invokes the callback with the records of the session history.
+     *
+     * @param cursor   The sequence number of the first record to read.
+     * @param limit    The max number of records to read.
+     * @param callback The callback to invoke.
+     */
+    private void readHistory (long cursor, int limit, CallbackContext callback)
+    {
+        cordova.getThreadPool().execute(() -> {
+            SessionHistory history = SessionHistory.get(cordova.getActivity());
+
+            try {
+                if (history == null) {
+                    callback.error("Session history not available");
+                } else {
+                    callback.success(history.read(cursor, limit));
+                }
+            } catch (JSONException e) {
+                callback.error(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Invokes the callback with the entries of the diagnostic log.
+     *
+     * @param cursor   The sequence number of the first entry to read.
+     * @param limit    The max number of entries to read.
+     * @param callback The callback to invoke.
+     */
+    private void readDiagnostics (long cursor, int limit, CallbackContext callback)
+    {
+        try {
+            callback.success(DiagnosticLog.read(cursor, limit));
+        } catch (JSONException e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Write the diagnostic log to a file and invoke the callback with its
+     * path.
+     *
+     * @param callback The callback to invoke.
+     */
+    private void dumpDiagnostics (CallbackContext callback)
+    {
+        cordova.getThreadPool().execute(() -> {
+            try {
+                callback.success(DiagnosticLog.dump(cordova.getActivity()).getAbsolutePath());
+            } catch (IOException e) {
+                callback.error(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Invokes the callback with the round-trip times of the web view.
+     *
+     * @param callback The callback to invoke.
+     */
+    private void getWatchdogStats (CallbackContext callback)
+    {
+        WebViewWatchdog watchdog = this.watchdog;
+
+        try {
+            callback.success(watchdog != null ? watchdog.toJSON() : new JSONObject());
+        } catch (JSONException e) {
+            callback.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Schedule the periodic job which replaces the service in silent mode.
+     */
+    private void scheduleJob()
+    {
+        Activity context = cordova.getActivity();
+
+        try {
+            BackgroundJobService.schedule(context, defaultSettings);
+            fireEvent(Event.ACTIVATE, null);
+            ListenerRegistry.activate();
+            isScheduled = true;
+        } catch (Exception e) {
+            fireEvent(Event.FAILURE, String.format("'%s'", e.getMessage()));
+            ListenerRegistry.failure(e.getMessage());
+            SessionHistory.record(context, SessionHistory.TYPE_FAILURE, 0, 0);
+            DiagnosticLog.error("plugin", "schedule", "Could not schedule the job", e);
+            // Nothing will stop the job, so the session would stay open
+            BackgroundSession.end();
+        }
+    }
+
+    /**
+     * Cancel the periodic job.
+     */
+    private void cancelJob()
+    {
+        fireEvent(Event.DEACTIVATE, null);
+        ListenerRegistry.deactivate();
+        BackgroundJobService.cancel(cordova.getActivity());
+        isScheduled = false;
+    }
+
+    /**
+     * Deliver the run of the periodic job to JS, which has to end it by
+     * calling the passed done function or finishJob with the ID of the run.
+     *
+     * @param runId The ID of the run.
+     *
+     * @return false if there is no listener for the job event.
+     */
+    private boolean onJobStarted (int runId)
+    {
+        Set<String> observed = observedEvents;
+
+        if (observed != null && !observed.contains(Event.JOB.jsName))
+            return false;
+
+        fireEvent(Event.JOB, String.format(Locale.ROOT,
+                "%d,function(){%s.finishJob(%d)}", runId, JS_NAMESPACE, runId));
+
+        return true;
+    }
+
     /**
      * Fire vent with some parameters inside the web view.
      *
@@ -303,20 +1331,79 @@ public class BackgroundMode extends CordovaPlugin {
      */
     private void fireEvent (Event event, String params)
     {
-        String eventName = event.name().toLowerCase();
-        Boolean active   = event == Event.ACTIVATE;
+        Set<String> observed = observedEvents;
+        String js;
 
-        String str = String.format("%s._setActive(%b)",
-                JS_NAMESPACE, active);
+        if (observed != null && !observed.contains(event.jsName)) {
+            Metrics.increment(Metrics.EVENTS_SUPPRESSED);
 
-        str = String.format("%s;%s.on('%s', %s)",
-                str, JS_NAMESPACE, eventName, params);
+            if (event.syncScript != null) {
+                evaluate(event.syncScript);
+            }
+            return;
+        }
+
+        if (params == null) {
+            js = event.script;
+        } else {
+            synchronized (eventScript) {
+                eventScript.setLength(0);
+                js = eventScript.append(event.prefix).append(params)
+                        .append(event.infix).append(params)
+                        .append(event.suffix).toString();
+            }
+        }
 
-        str = String.format("%s;%s.fireEvent('%s',%s);",
-                str, JS_NAMESPACE, eventName, params);
+        Metrics.increment(Metrics.EVENTS_FIRED);
+        evaluate(js);
+    }
 
-        final String js = str;
+    /**
+     * Evaluate the script inside the web view.
+     *
+     * @param js The script prefixed with javascript:
+     */
+    private void evaluate (String js)
+    {
+        cordova.getActivity().runOnUiThread(() -> webView.loadUrl(js));
+    }
 
-        cordova.getActivity().runOnUiThread(() -> webView.loadUrl("javascript:" + js));
+    /**
+     * Settings of the notification together with the keys changed since
+     * the last applied settings.
+     */
+    private static final class SettingsUpdate
+    {
+        // The complete settings
+        final JSONObject settings;
+
+        // The changed keys or null if all have changed
+        final Set<String> keys;
+
+        SettingsUpdate (JSONObject settings, Set<String> keys)
+        {
+            this.settings = settings;
+            this.keys     = keys;
+        }
+
+        /**
+         * Returns the update which also contains the changes of the older
+         * update, which hasn't been applied yet.
+         *
+         * @param older The pending update or null.
+         */
+        SettingsUpdate mergeWith (SettingsUpdate older)
+        {
+            if (older == null || keys == null)
+                return this;
+
+            if (older.keys == null)
+                return new SettingsUpdate(settings, null);
+
+            Set<String> merged = new HashSet<>(keys);
+            merged.addAll(older.keys);
+
+            return new SettingsUpdate(settings, merged);
+        }
     }
 }
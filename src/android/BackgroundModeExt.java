@@ -44,13 +44,20 @@ package de.appplant.cordova.plugin.background;
   import org.apache.cordova.PluginResult;
   import org.apache.cordova.PluginResult.Status;
   import org.json.JSONArray;
+  import org.json.JSONException;
   import org.json.JSONObject;
 
   import java.util.Arrays;
   import java.util.HashMap;
+  import java.util.LinkedHashMap;
   import java.util.List;
   import java.util.Map;
   import java.util.Set;
+  import java.util.concurrent.Callable;
+  import java.util.concurrent.ConcurrentHashMap;
+  import java.util.concurrent.ExecutorService;
+  import java.util.concurrent.Future;
+  import java.util.concurrent.TimeUnit;
 
   import static android.R.string.cancel;
   import static android.R.string.ok;
@@ -73,8 +80,19 @@ package de.appplant.cordova.plugin.background;
  */
 public class BackgroundModeExt extends CordovaPlugin {
 
-  // To keep the device awake
-  private PowerManager.WakeLock wakeLock;
+  // Max time in ms to wait for the device capability probes
+  private static final long PROBE_TIMEOUT = 5000;
+
+  /**
+   * Called after plugin construction and fields have been initialized.
+   * The plugin gets loaded on startup so that wake-ups are delivered even
+   * if no action of it has been called yet.
+   */
+  @Override
+  protected void pluginInitialize()
+  {
+    WakeupReceiver.setListener(this::onWakeup);
+  }
 
   /**
    * Executes the request.
@@ -89,6 +107,29 @@ public class BackgroundModeExt extends CordovaPlugin {
   @Override
   public boolean execute (String action, JSONArray args,
                           CallbackContext callback)
+  {
+    Tracer.begin("ext.execute:", action);
+    BackgroundBudget.touch();
+
+    try {
+      return dispatch(action, args, callback);
+    } finally {
+      Tracer.end();
+    }
+  }
+
+  /**
+   * Executes the request.
+   *
+   * @param action   The action to execute.
+   * @param args     The exec() arguments.
+   * @param callback The callback context used when
+   *                 calling back into JavaScript.
+   *
+   * @return Returning false results in a "MethodNotFound" error.
+   */
+  private boolean dispatch (String action, JSONArray args,
+                            CallbackContext callback)
   {
     boolean validAction = true;
 
@@ -138,6 +179,33 @@ public class BackgroundModeExt extends CordovaPlugin {
         wakeup();
         unlock();
         break;
+      case "acquireLease":
+        acquireLease(args.optString(0), args.optLong(1), callback);
+        break;
+      case "releaseLease":
+        releaseLease(args.optString(0), callback);
+        break;
+      case "leases":
+        getLeases(callback);
+        break;
+      case "wakelocks":
+        getWakeLocks(callback);
+        break;
+      case "diagnostics":
+        cordova.getThreadPool().execute(() -> diagnostics(callback));
+        return true;
+      case "batch":
+        cordova.getThreadPool().execute(() -> runBatch(args, callback));
+        return true;
+      case "scheduleWakeup":
+        scheduleWakeup(args.optLong(0), args.optJSONObject(1), callback);
+        break;
+      case "cancelWakeup":
+        WakeupReceiver.cancel(getApp(), args.optInt(0));
+        break;
+      case "wakeups":
+        getWakeups(callback);
+        break;
       default:
         validAction = false;
     }
@@ -151,6 +219,17 @@ public class BackgroundModeExt extends CordovaPlugin {
     return validAction;
   }
 
+  /**
+   * Called when the activity will be destroyed.
+   */
+  @Override
+  public void onDestroy()
+  {
+    WakeLockLeases.get(getApp()).releaseAll();
+    WakeLockManager.get(getApp()).release(BackgroundSession.SCREEN_LOCK);
+    WakeupReceiver.setListener(null);
+  }
+
   /**
    * Moves the app to the background.
    */
@@ -188,17 +267,7 @@ public class BackgroundModeExt extends CordovaPlugin {
       public void run() {
         try {
           Thread.sleep(2000);
-          getApp().runOnUiThread(() -> {
-            View view = webView.getView();
-
-            try {
-              Class.forName("org.crosswalk.engine.XWalkCordovaView")
-                .getMethod("onShow")
-                .invoke(view);
-            } catch (Exception e){
-              view.dispatchWindowVisibilityChanged(View.VISIBLE);
-            }
-          });
+          getApp().runOnUiThread(() -> dispatchVisible(webView.getView()));
         } catch (InterruptedException e) {
           // do nothing
         }
@@ -208,6 +277,23 @@ public class BackgroundModeExt extends CordovaPlugin {
     thread.start();
   }
 
+  /**
+   * Tells the web view that it's visible so that it doesn't throttle itself.
+   * Has to be called on the UI thread.
+   *
+   * @param view The view of the web view.
+   */
+  static void dispatchVisible (View view)
+  {
+    try {
+      Class.forName("org.crosswalk.engine.XWalkCordovaView")
+        .getMethod("onShow")
+        .invoke(view);
+    } catch (Exception e){
+      view.dispatchWindowVisibilityChanged(View.VISIBLE);
+    }
+  }
+
   /**
    * Disables battery optimizations for the app.
    * Requires permission.REQUEST_IGNORE_BATTERY_OPTIMIZATIONS to function.
@@ -432,6 +518,7 @@ public class BackgroundModeExt extends CordovaPlugin {
     try {
       acquireWakeLock();
     } catch (Exception e) {
+      DiagnosticLog.warn("ext", "wakeup", "Could not wake up the device", e);
       releaseWakeLock();
     }
   }
@@ -448,22 +535,15 @@ public class BackgroundModeExt extends CordovaPlugin {
   /**
    * Acquires a wake lock to wake up the device.
    */
-  @SuppressWarnings("deprecation")
   private void acquireWakeLock()
   {
-    PowerManager pm = (PowerManager) getService(POWER_SERVICE);
-
     releaseWakeLock();
 
     if (!isDimmed())
       return;
 
-    int level = PowerManager.SCREEN_DIM_WAKE_LOCK |
-      PowerManager.ACQUIRE_CAUSES_WAKEUP;
-
-    wakeLock = pm.newWakeLock(level, "backgroundmode:wakelock");
-    wakeLock.setReferenceCounted(false);
-    wakeLock.acquire(1000);
+    WakeLockManager.get(getApp()).acquire(
+      BackgroundSession.SCREEN_LOCK, WakeLockManager.SCREEN, 1000);
   }
 
   /**
@@ -471,12 +551,230 @@ public class BackgroundModeExt extends CordovaPlugin {
    */
   private void releaseWakeLock()
   {
-    if (wakeLock != null && wakeLock.isHeld()) {
-      wakeLock.release();
-      wakeLock = null;
+    WakeLockManager.get(getApp()).release(BackgroundSession.SCREEN_LOCK);
+  }
+
+  /**
+   * Acquires a named lease on a partial wake lock.
+   *
+   * @param tag      The name of the lease.
+   * @param timeout  The timeout in ms after the lease gets released.
+   * @param callback The callback to invoke with the number of leases.
+   */
+  private void acquireLease (String tag, long timeout, CallbackContext callback)
+  {
+    int count        = WakeLockLeases.get(getApp()).acquire(tag, timeout);
+    PluginResult res = new PluginResult(Status.OK, count);
+
+    callback.sendPluginResult(res);
+  }
+
+  /**
+   * Releases the oldest lease of the tag.
+   *
+   * @param tag      The name of the lease.
+   * @param callback The callback to invoke with the held time in ms.
+   */
+  private void releaseLease (String tag, CallbackContext callback)
+  {
+    long heldMs      = WakeLockLeases.get(getApp()).release(tag);
+    PluginResult res = new PluginResult(Status.OK, (int) heldMs);
+
+    callback.sendPluginResult(res);
+  }
+
+  /**
+   * Invokes the callback with the active leases and their held times.
+   *
+   * @param callback The callback to invoke.
+   */
+  private void getLeases (CallbackContext callback)
+  {
+    try {
+      callback.success(WakeLockLeases.get(getApp()).toJSON());
+    } catch (JSONException e) {
+      callback.error(e.getMessage());
     }
   }
 
+  /**
+   * Schedules a native wake-up at the given time.
+   *
+   * @param at       The wall time in ms of the wake-up.
+   * @param options  The unlock and moveToForeground flags.
+   * @param callback The callback to invoke with the schedule.
+   */
+  private void scheduleWakeup (long at, JSONObject options, CallbackContext callback)
+  {
+    JSONObject opts = options != null ? options : new JSONObject();
+
+    try {
+      callback.success(WakeupReceiver.schedule(getApp(), at,
+        opts.optBoolean("unlock", false),
+        opts.optBoolean("moveToForeground", false)));
+    } catch (JSONException e) {
+      callback.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Invokes the callback with the pending wake-ups.
+   *
+   * @param callback The callback to invoke.
+   */
+  private void getWakeups (CallbackContext callback)
+  {
+    callback.success(WakeupReceiver.list(getApp()));
+  }
+
+  /**
+   * Called on the main thread when a scheduled wake-up is due. The screen
+   * is already on, so only the keyguard and the event are left.
+   *
+   * @param wakeup The fired schedule.
+   */
+  private void onWakeup (JSONObject wakeup)
+  {
+    if (wakeup.optBoolean("unlock")) {
+      unlock();
+    } else if (wakeup.optBoolean("moveToForeground")) {
+      moveToForeground();
+    }
+
+    CordovaPlugin plugin = webView.getPluginManager().getPlugin("BackgroundMode");
+
+    if (plugin instanceof BackgroundMode) {
+      ((BackgroundMode) plugin).fireWakeup(wakeup);
+    }
+  }
+
+  /**
+   * Invokes the callback with the acquire count and held time of all wake
+   * locks by owner.
+   *
+   * @param callback The callback to invoke.
+   */
+  private void getWakeLocks (CallbackContext callback)
+  {
+    try {
+      callback.success(WakeLockManager.get(getApp()).toJSON());
+    } catch (JSONException e) {
+      callback.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Invokes the callback with a snapshot of the device capabilities. All
+   * probes run concurrently on the thread pool and report their timings.
+   *
+   * @param callback The callback to invoke.
+   */
+  private void diagnostics (CallbackContext callback)
+  {
+    Map<String, Callable<Object>> probes = new LinkedHashMap<>();
+    Map<String, Future<Object>> results  = new LinkedHashMap<>();
+    Map<String, Long> timings            = new ConcurrentHashMap<>();
+    ExecutorService pool                 = cordova.getThreadPool();
+    long start                           = System.nanoTime();
+
+    probes.put("ignoringBatteryOptimizations", () -> {
+      if (SDK_INT < M)
+        return true;
+
+      PowerManager pm = (PowerManager) getService(POWER_SERVICE);
+      return pm.isIgnoringBatteryOptimizations(getApp().getPackageName());
+    });
+    probes.put("notificationsEnabled", () -> NotificationManagerCompat.from(getApp()).areNotificationsEnabled());
+    probes.put("screenOff", this::isDimmed);
+    probes.put("canDrawOverlays", () -> SDK_INT < M || Settings.canDrawOverlays(getApp().getApplicationContext()));
+    probes.put("autoStartAvailable", this::isAutoStartAvailable);
+
+    for (Map.Entry<String, Callable<Object>> probe : probes.entrySet()) {
+      String name              = probe.getKey();
+      Callable<Object> process = probe.getValue();
+
+      results.put(name, pool.submit(() -> {
+        long probeStart = System.nanoTime();
+
+        try {
+          return process.call();
+        } finally {
+          timings.put(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeStart));
+        }
+      }));
+    }
+
+    try {
+      JSONObject snapshot = new JSONObject();
+      long deadline       = start + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT);
+
+      for (Map.Entry<String, Future<Object>> result : results.entrySet()) {
+        String name     = result.getKey();
+        JSONObject json = new JSONObject();
+
+        try {
+          json.put("value", result.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+        } catch (Exception e) {
+          result.getValue().cancel(true);
+          json.put("error", String.valueOf(e));
+        }
+
+        Long ms = timings.get(name);
+        snapshot.put(name, json.put("ms", ms != null ? ms : -1));
+      }
+
+      snapshot.put("totalMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      callback.success(snapshot);
+    } catch (JSONException e) {
+      callback.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Executes the list of commands in sequence and invokes the callback with
+   * the results of all of them.
+   *
+   * @param args     The commands and the stop on error flag.
+   * @param callback The callback to invoke.
+   */
+  private void runBatch (JSONArray args, CallbackContext callback)
+  {
+    try {
+      callback.success(Batch.run(webView, "BackgroundModeExt",
+        args.getJSONArray(0), args.optBoolean(1)));
+    } catch (JSONException e) {
+      callback.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Returns true if an app start settings screen of the manufacturer exists.
+   */
+  private boolean isAutoStartAvailable()
+  {
+    PackageManager pm = getApp().getPackageManager();
+
+    for (Map.Entry<String, List<String>> entry : AutoStartVendors.hashMap.entrySet()) {
+      if (!Build.MANUFACTURER.equalsIgnoreCase(entry.getKey()))
+        continue;
+
+      for (String act : entry.getValue()) {
+        Intent intent;
+
+        if (act.contains("/")) {
+          intent = new Intent().setComponent(ComponentName.unflattenFromString(act));
+        } else {
+          intent = pm.getLaunchIntentForPackage(act);
+        }
+
+        if (intent != null && pm.resolveActivity(intent, MATCH_DEFAULT_ONLY) != null)
+          return true;
+      }
+    }
+
+    return false;
+  }
+
   /**
    * Adds required flags to the window to unlock/wakeup the device.
    */
@@ -556,128 +854,136 @@ public class BackgroundModeExt extends CordovaPlugin {
       new Intent().setComponent(new ComponentName("com.zui.safecenter", "com.lenovo.safecenter.MainTab.LeSafeMainActivity"))
     );
   }
-  private static HashMap<String, List<String>> hashMap = new HashMap<String, List<String>>() {
-    {
-      put("Xiaomi", Arrays.asList(
-        "com.miui.securitycenter/com.miui.permcenter.autostart.AutoStartManagementActivity",//MIUI10_9.8.1(9.0)
-        "com.miui.securitycenter"
-      ));
-
-      put("samsung", Arrays.asList(
-        "com.samsung.android.sm_cn/com.samsung.android.sm.ui.ram.AutoRunActivity",
-        "com.samsung.android.sm_cn/com.samsung.android.sm.ui.appmanagement.AppManagementActivity",
-        "com.samsung.android.sm_cn/com.samsung.android.sm.ui.cstyleboard.SmartManagerDashBoardActivity",
-        "com.samsung.android.sm_cn/.ui.ram.RamActivity",
-        "com.samsung.android.sm_cn/.app.dashboard.SmartManagerDashBoardActivity",
-
-        "com.samsung.android.sm/com.samsung.android.sm.ui.ram.AutoRunActivity",
-        "com.samsung.android.sm/com.samsung.android.sm.ui.appmanagement.AppManagementActivity",
-        "com.samsung.android.sm/com.samsung.android.sm.ui.cstyleboard.SmartManagerDashBoardActivity",
-        "com.samsung.android.sm/.ui.ram.RamActivity",
-        "com.samsung.android.sm/.app.dashboard.SmartManagerDashBoardActivity",
-
-        "com.samsung.android.lool/com.samsung.android.sm.ui.battery.BatteryActivity",
-        "com.samsung.android.sm_cn",
-        "com.samsung.android.sm"
-      ));
-
-
-      put("HUAWEI", Arrays.asList(
-        "com.huawei.systemmanager/.startupmgr.ui.StartupNormalAppListActivity",//EMUI9.1.0(方舟,9.0)
-        "com.huawei.systemmanager/.appcontrol.activity.StartupAppControlActivity",
-        "com.huawei.systemmanager/.optimize.process.ProtectActivity",
-        "com.huawei.systemmanager/.optimize.bootstart.BootStartActivity",
-        "com.huawei.systemmanager"//最后一行可以写包名, 这样如果签名的类路径在某些新版本的ROM中没找到 就直接跳转到对应的安全中心/手机管家 首页.
-      ));
-
-      put("vivo", Arrays.asList(
-        "com.iqoo.secure/.ui.phoneoptimize.BgStartUpManager",
-        "com.iqoo.secure/.safeguard.PurviewTabActivity",
-        "com.vivo.permissionmanager/.activity.BgStartUpManagerActivity",
-//                    "com.iqoo.secure/.ui.phoneoptimize.AddWhiteListActivity", //这是白名单, 不是自启动
-        "com.iqoo.secure",
-        "com.vivo.permissionmanager"
-      ));
-
-      put("Meizu", Arrays.asList(
-        "com.meizu.safe/.permission.SmartBGActivity",//Flyme7.3.0(7.1.2)
-        "com.meizu.safe/.permission.PermissionMainActivity",//网上的
-        "com.meizu.safe"
-      ));
-
-      put("OPPO", Arrays.asList(
-        "com.coloros.safecenter/.startupapp.StartupAppListActivity",
-        "com.coloros.safecenter/.permission.startup.StartupAppListActivity",
-        "com.oppo.safe/.permission.startup.StartupAppListActivity",
-        "com.coloros.oppoguardelf/com.coloros.powermanager.fuelgaue.PowerUsageModelActivity",
-        "com.coloros.safecenter/com.coloros.privacypermissionsentry.PermissionTopActivity",
-        "com.coloros.safecenter",
-        "com.oppo.safe",
-        "com.coloros.oppoguardelf"
-      ));
-
-      put("oneplus", Arrays.asList(
-        "com.oneplus.security/.chainlaunch.view.ChainLaunchAppListActivity",
-        "com.oneplus.security"
-      ));
-      put("letv", Arrays.asList(
-        "com.letv.android.letvsafe/.AutobootManageActivity",
-        "com.letv.android.letvsafe/.BackgroundAppManageActivity",//应用保护
-        "com.letv.android.letvsafe"
-      ));
-      put("zte", Arrays.asList(
-        "com.zte.heartyservice/.autorun.AppAutoRunManager",
-        "com.zte.heartyservice"
-      ));
-      //金立
-      put("F", Arrays.asList(
-        "com.gionee.softmanager/.MainActivity",
-        "com.gionee.softmanager"
-      ));
-
-      //以下为未确定(厂商名也不确定)
-      put("smartisanos", Arrays.asList(
-        "com.smartisanos.security/.invokeHistory.InvokeHistoryActivity",
-        "com.smartisanos.security"
-      ));
-      //360
-      put("360", Arrays.asList(
-        "com.yulong.android.coolsafe/.ui.activity.autorun.AutoRunListActivity",
-        "com.yulong.android.coolsafe"
-      ));
-      //360
-      put("ulong", Arrays.asList(
-        "com.yulong.android.coolsafe/.ui.activity.autorun.AutoRunListActivity",
-        "com.yulong.android.coolsafe"
-      ));
-      //酷派
-      put("coolpad"/*厂商名称不确定是否正确*/, Arrays.asList(
-        "com.yulong.android.security/com.yulong.android.seccenter.tabbarmain",
-        "com.yulong.android.security"
-      ));
-      //联想
-      put("lenovo"/*厂商名称不确定是否正确*/, Arrays.asList(
-        "com.lenovo.security/.purebackground.PureBackgroundActivity",
-        "com.lenovo.security"
-      ));
-      put("htc"/*厂商名称不确定是否正确*/, Arrays.asList(
-        "com.htc.pitroad/.landingpage.activity.LandingPageActivity",
-        "com.htc.pitroad"
-      ));
-      //华硕
-      put("asus"/*厂商名称不确定是否正确*/, Arrays.asList(
-        "com.asus.mobilemanager/.MainActivity",
-        "com.asus.mobilemanager"
-      ));
+  /**
+   * Holder of the known autostart settings screens by manufacturer. The
+   * table is built with the first access instead of when the plugin
+   * class gets loaded.
+   */
+  private static final class AutoStartVendors {
 
-    }
-  };
+    static final Map<String, List<String>> hashMap = new HashMap<String, List<String>>() {
+      {
+        put("Xiaomi", Arrays.asList(
+          "com.miui.securitycenter/com.miui.permcenter.autostart.AutoStartManagementActivity",//MIUI10_9.8.1(9.0)
+          "com.miui.securitycenter"
+        ));
+
+        put("samsung", Arrays.asList(
+          "com.samsung.android.sm_cn/com.samsung.android.sm.ui.ram.AutoRunActivity",
+          "com.samsung.android.sm_cn/com.samsung.android.sm.ui.appmanagement.AppManagementActivity",
+          "com.samsung.android.sm_cn/com.samsung.android.sm.ui.cstyleboard.SmartManagerDashBoardActivity",
+          "com.samsung.android.sm_cn/.ui.ram.RamActivity",
+          "com.samsung.android.sm_cn/.app.dashboard.SmartManagerDashBoardActivity",
+
+          "com.samsung.android.sm/com.samsung.android.sm.ui.ram.AutoRunActivity",
+          "com.samsung.android.sm/com.samsung.android.sm.ui.appmanagement.AppManagementActivity",
+          "com.samsung.android.sm/com.samsung.android.sm.ui.cstyleboard.SmartManagerDashBoardActivity",
+          "com.samsung.android.sm/.ui.ram.RamActivity",
+          "com.samsung.android.sm/.app.dashboard.SmartManagerDashBoardActivity",
+
+          "com.samsung.android.lool/com.samsung.android.sm.ui.battery.BatteryActivity",
+          "com.samsung.android.sm_cn",
+          "com.samsung.android.sm"
+        ));
+
+
+        put("HUAWEI", Arrays.asList(
+          "com.huawei.systemmanager/.startupmgr.ui.StartupNormalAppListActivity",//EMUI9.1.0(方舟,9.0)
+          "com.huawei.systemmanager/.appcontrol.activity.StartupAppControlActivity",
+          "com.huawei.systemmanager/.optimize.process.ProtectActivity",
+          "com.huawei.systemmanager/.optimize.bootstart.BootStartActivity",
+          "com.huawei.systemmanager"//最后一行可以写包名, 这样如果签名的类路径在某些新版本的ROM中没找到 就直接跳转到对应的安全中心/手机管家 首页.
+        ));
+
+        put("vivo", Arrays.asList(
+          "com.iqoo.secure/.ui.phoneoptimize.BgStartUpManager",
+          "com.iqoo.secure/.safeguard.PurviewTabActivity",
+          "com.vivo.permissionmanager/.activity.BgStartUpManagerActivity",
+  //                    "com.iqoo.secure/.ui.phoneoptimize.AddWhiteListActivity", //这是白名单, 不是自启动
+          "com.iqoo.secure",
+          "com.vivo.permissionmanager"
+        ));
+
+        put("Meizu", Arrays.asList(
+          "com.meizu.safe/.permission.SmartBGActivity",//Flyme7.3.0(7.1.2)
+          "com.meizu.safe/.permission.PermissionMainActivity",//网上的
+          "com.meizu.safe"
+        ));
+
+        put("OPPO", Arrays.asList(
+          "com.coloros.safecenter/.startupapp.StartupAppListActivity",
+          "com.coloros.safecenter/.permission.startup.StartupAppListActivity",
+          "com.oppo.safe/.permission.startup.StartupAppListActivity",
+          "com.coloros.oppoguardelf/com.coloros.powermanager.fuelgaue.PowerUsageModelActivity",
+          "com.coloros.safecenter/com.coloros.privacypermissionsentry.PermissionTopActivity",
+          "com.coloros.safecenter",
+          "com.oppo.safe",
+          "com.coloros.oppoguardelf"
+        ));
+
+        put("oneplus", Arrays.asList(
+          "com.oneplus.security/.chainlaunch.view.ChainLaunchAppListActivity",
+          "com.oneplus.security"
+        ));
+        put("letv", Arrays.asList(
+          "com.letv.android.letvsafe/.AutobootManageActivity",
+          "com.letv.android.letvsafe/.BackgroundAppManageActivity",//应用保护
+          "com.letv.android.letvsafe"
+        ));
+        put("zte", Arrays.asList(
+          "com.zte.heartyservice/.autorun.AppAutoRunManager",
+          "com.zte.heartyservice"
+        ));
+        //金立
+        put("F", Arrays.asList(
+          "com.gionee.softmanager/.MainActivity",
+          "com.gionee.softmanager"
+        ));
+
+        //以下为未确定(厂商名也不确定)
+        put("smartisanos", Arrays.asList(
+          "com.smartisanos.security/.invokeHistory.InvokeHistoryActivity",
+          "com.smartisanos.security"
+        ));
+        //360
+        put("360", Arrays.asList(
+          "com.yulong.android.coolsafe/.ui.activity.autorun.AutoRunListActivity",
+          "com.yulong.android.coolsafe"
+        ));
+        //360
+        put("ulong", Arrays.asList(
+          "com.yulong.android.coolsafe/.ui.activity.autorun.AutoRunListActivity",
+          "com.yulong.android.coolsafe"
+        ));
+        //酷派
+        put("coolpad"/*厂商名称不确定是否正确*/, Arrays.asList(
+          "com.yulong.android.security/com.yulong.android.seccenter.tabbarmain",
+          "com.yulong.android.security"
+        ));
+        //联想
+        put("lenovo"/*厂商名称不确定是否正确*/, Arrays.asList(
+          "com.lenovo.security/.purebackground.PureBackgroundActivity",
+          "com.lenovo.security"
+        ));
+        put("htc"/*厂商名称不确定是否正确*/, Arrays.asList(
+          "com.htc.pitroad/.landingpage.activity.LandingPageActivity",
+          "com.htc.pitroad"
+        ));
+        //华硕
+        put("asus"/*厂商名称不确定是否正确*/, Arrays.asList(
+          "com.asus.mobilemanager/.MainActivity",
+          "com.asus.mobilemanager"
+        ));
+
+      }
+    };
+  }
 
   public void startToAutoStartSetting() {
 
     Activity context = cordova.getActivity();
 
-    Set<Map.Entry<String, List<String>>> entries = hashMap.entrySet();
+    Set<Map.Entry<String, List<String>>> entries = AutoStartVendors.hashMap.entrySet();
     boolean has = false;
     for (Map.Entry<String, List<String>> entry : entries) {
       String manufacturer = entry.getKey();
@@ -700,7 +1006,7 @@ public class BackgroundModeExt extends CordovaPlugin {
             has = true;
             break;
           } catch (Exception e) {
-            e.printStackTrace();
+            DiagnosticLog.warn("ext", "autostart", "Could not open " + act, e);
           }
         }
       }
@@ -714,7 +1020,7 @@ public class BackgroundModeExt extends CordovaPlugin {
         intent.setData(Uri.fromParts("package", context.getPackageName(), null));
         context.startActivity(intent);
       } catch (Exception e) {
-        e.printStackTrace();
+        DiagnosticLog.warn("ext", "autostart", "Could not open app details", e);
         Intent intent = new Intent(Settings.ACTION_SETTINGS);
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         context.startActivity(intent);
@@ -0,0 +1,59 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+/**
+ * Lets other native plugins follow the lifecycle of the background mode
+ * without going through the web view. Register it with
+ * BackgroundMode.addListener() to get called on the given executor.
+ */
+public interface BackgroundModeListener {
+
+    /**
+     * Called once the background mode got activated.
+     */
+    default void onActivate() {}
+
+    /**
+     * Called once the background mode got deactivated.
+     */
+    default void onDeactivate() {}
+
+    /**
+     * Called if the service could not be started or got disconnected.
+     *
+     * @param message The reason of the failure.
+     */
+    default void onFailure (String message) {}
+
+    /**
+     * Called once the foreground service is connected to the activity.
+     */
+    default void onServiceConnected() {}
+
+    /**
+     * Called if the system asks the foreground service to trim its memory.
+     *
+     * @param level The level passed to ComponentCallbacks2.onTrimMemory().
+     */
+    default void onTrimMemory (int level) {}
+}
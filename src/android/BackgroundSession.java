@@ -0,0 +1,280 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Power and CPU accounting of a single background session, which lasts
+ * from going to background until the service gets stopped.
+ */
+final class BackgroundSession {
+
+    // Owner of the partial wake lock of the foreground service
+    static final String SERVICE_LOCK = "service";
+
+    // Owner of the screen wake lock to wake up the device
+    static final String SCREEN_LOCK = "screen";
+
+    // Owner of the wake lock held for the leases
+    static final String LEASE_LOCK = "lease";
+
+    // Owner of the screen wake lock of the scheduled wake-ups
+    static final String WAKEUP_LOCK = "wakeup";
+
+    // The running session
+    private static BackgroundSession current;
+
+    // The last finished session
+    private static BackgroundSession last;
+
+    // Wall time when the session started
+    private final long startedAt = System.currentTimeMillis();
+
+    // Realtime when the session started
+    private final long startRealtime = SystemClock.elapsedRealtime();
+
+    // CPU time of the process when the session started
+    private final long startCpuTime = Process.getElapsedCpuTime();
+
+    // Notification updates when the session started
+    private final long startNotifyCalls = Metrics.count(Metrics.NOTIFY_CALLS);
+
+    // Fired events when the session started
+    private final long startEvents = Metrics.count(Metrics.EVENTS_FIRED);
+
+    // Wake lock held times by owner
+    private final Map<String, Hold> holds = new HashMap<>();
+
+    // Realtime when the session ended or 0 if still running
+    private long endRealtime = 0;
+
+    // CPU time of the process when the session ended
+    private long endCpuTime;
+
+    // Notification updates when the session ended
+    private long endNotifyCalls;
+
+    // Fired events when the session ended
+    private long endEvents;
+
+    private BackgroundSession() {}
+
+    /**
+     * Start a new session, the running one gets ended.
+     */
+    static synchronized void begin()
+    {
+        end();
+        current = new BackgroundSession();
+    }
+
+    /**
+     * End the running session.
+     *
+     * @return The ended session or null if none was running.
+     */
+    static synchronized BackgroundSession end()
+    {
+        if (current == null)
+            return null;
+
+        current.endRealtime    = SystemClock.elapsedRealtime();
+        current.endCpuTime     = Process.getElapsedCpuTime();
+        current.endNotifyCalls = Metrics.count(Metrics.NOTIFY_CALLS);
+        current.endEvents      = Metrics.count(Metrics.EVENTS_FIRED);
+
+        for (Hold hold : current.holds.values()) {
+            hold.release(current.endRealtime);
+        }
+
+        last    = current;
+        current = null;
+
+        return last;
+    }
+
+    /**
+     * Returns the wall time when the running session started or now if
+     * none is running.
+     */
+    static synchronized long getStartedAt()
+    {
+        return current != null ? current.startedAt : System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the total time in ms any wake lock has been held within the
+     * running session.
+     */
+    static synchronized long getWakeLockTime()
+    {
+        long now   = SystemClock.elapsedRealtime();
+        long total = 0;
+
+        if (current == null)
+            return 0;
+
+        for (Hold hold : current.holds.values()) {
+            total += hold.heldTime(now);
+        }
+
+        return total;
+    }
+
+    /**
+     * Returns the duration in ms of the ended session.
+     */
+    long getDuration()
+    {
+        return endRealtime - startRealtime;
+    }
+
+    /**
+     * Returns the CPU time in ms the process used within the ended session.
+     */
+    long getCpuTime()
+    {
+        return endCpuTime - startCpuTime;
+    }
+
+    /**
+     * Record that a wake lock has been acquired.
+     *
+     * @param owner   The owner of the wake lock.
+     * @param timeout The timeout in ms of the wake lock or 0 if none.
+     */
+    static synchronized void wakeLockAcquired (String owner, long timeout)
+    {
+        if (current == null)
+            return;
+
+        Hold hold = current.holds.get(owner);
+
+        if (hold == null) {
+            hold = new Hold();
+            current.holds.put(owner, hold);
+        }
+
+        hold.acquire(SystemClock.elapsedRealtime(), timeout);
+    }
+
+    /**
+     * Record that a wake lock has been released.
+     *
+     * @param owner The owner of the wake lock.
+     */
+    static synchronized void wakeLockReleased (String owner)
+    {
+        Hold hold = current != null ? current.holds.get(owner) : null;
+
+        if (hold != null) {
+            hold.release(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Returns the running and the last finished session.
+     */
+    static synchronized JSONObject toJSON() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+
+        if (current != null) {
+            json.put("current", current.report());
+        }
+
+        if (last != null) {
+            json.put("last", last.report());
+        }
+
+        return json;
+    }
+
+    /**
+     * Returns the report of the session.
+     */
+    private JSONObject report() throws JSONException
+    {
+        boolean running = endRealtime == 0;
+        long now        = running ? SystemClock.elapsedRealtime() : endRealtime;
+        JSONObject held = new JSONObject();
+
+        for (Map.Entry<String, Hold> entry : holds.entrySet()) {
+            held.put(entry.getKey(), entry.getValue().heldTime(now));
+        }
+
+        return new JSONObject()
+                .put("startedAt", startedAt)
+                .put("running", running)
+                .put("durationMs", now - startRealtime)
+                .put("cpuTimeMs", (running ? Process.getElapsedCpuTime() : endCpuTime) - startCpuTime)
+                .put("notifyCalls", (running ? Metrics.count(Metrics.NOTIFY_CALLS) : endNotifyCalls) - startNotifyCalls)
+                .put("eventsFired", (running ? Metrics.count(Metrics.EVENTS_FIRED) : endEvents) - startEvents)
+                .put("wakeLockHeldMs", held);
+    }
+
+    /**
+     * Held time of a wake lock within the session.
+     */
+    private static final class Hold
+    {
+        // Total held time in ms of the finished holds
+        long total = 0;
+
+        // Realtime when the wake lock was acquired or 0 if not held
+        long acquiredAt = 0;
+
+        // Timeout in ms of the current hold or 0 if none
+        long timeout = 0;
+
+        void acquire (long now, long timeout)
+        {
+            release(now);
+            this.acquiredAt = now;
+            this.timeout    = timeout;
+        }
+
+        void release (long now)
+        {
+            total      = heldTime(now);
+            acquiredAt = 0;
+        }
+
+        long heldTime (long now)
+        {
+            if (acquiredAt == 0)
+                return total;
+
+            long held = now - acquiredAt;
+
+            return total + (timeout > 0 ? Math.min(held, timeout) : held);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a list of plugin actions in sequence with a single bridge crossing
+ * and collects their results. Only the actions of this plugin can be run,
+ * the ones which change the state of the mode or the activity on the UI
+ * thread where the lifecycle callbacks run too.
+ */
+final class Batch {
+
+    // Max time in ms to wait for the result of a single action
+    private static final long ACTION_TIMEOUT = 10000;
+
+    // Plugins whose actions can be run
+    private static final Set<String> SERVICES = new HashSet<>(Arrays.asList(
+            "BackgroundMode", "BackgroundModeExt"));
+
+    // Actions which have to run on the UI thread
+    private static final Set<String> UI_ACTIONS = new HashSet<>(Arrays.asList(
+            "configure", "patch", "enable", "disable", "progress", "count",
+            "setCount", "listen", "background", "foreground", "tasklist",
+            "webview", "wakeup", "unlock", "appstart", "batterysettings",
+            "openNotificationSettings", "requestTopPermissions"));
+
+    // Actions which can't be batched as they call back more than once or
+    // with a multipart result, while a batch keeps a single result each
+    private static final Set<String> UNBATCHABLE_ACTIONS = new HashSet<>(Arrays.asList(
+            "batch", "computeBatch", "shutdownHook"));
+
+    private Batch() {}
+
+    /**
+     * Run the commands in sequence.
+     *
+     * @param webView     The web view to look up the plugins.
+     * @param service     The plugin of commands without a service.
+     * @param commands    List of {service, action, args} objects.
+     * @param stopOnError Set to true to skip the commands after an error.
+     *
+     * @return The results in the order of the commands.
+     */
+    static JSONArray run (CordovaWebView webView, String service,
+                          JSONArray commands, boolean stopOnError)
+            throws JSONException
+    {
+        JSONArray results = new JSONArray();
+
+        for (int i = 0; i < commands.length(); i++) {
+            JSONObject command = commands.getJSONObject(i);
+            String action      = command.optString("action");
+            JSONObject result  = execute(webView,
+                    command.optString("service", service), action,
+                    command.optJSONArray("args"));
+
+            results.put(result.put("action", action));
+
+            if (stopOnError && !result.optBoolean("ok"))
+                break;
+        }
+
+        return results;
+    }
+
+    /**
+     * Run a single command and wait for its result.
+     *
+     * @param webView The web view to look up the plugin.
+     * @param service The name of the plugin.
+     * @param action  The action to execute.
+     * @param args    The exec() arguments.
+     *
+     * @return The status and the result of the command.
+     */
+    private static JSONObject execute (CordovaWebView webView, String service,
+                                       String action, JSONArray args)
+            throws JSONException
+    {
+        if (!SERVICES.contains(service))
+            return error("Unknown service: " + service);
+
+        if (UNBATCHABLE_ACTIONS.contains(action))
+            return error("Action can't be batched: " + action);
+
+        CordovaPlugin plugin = webView.getPluginManager().getPlugin(service);
+        Result callback      = new Result(webView);
+
+        if (plugin == null)
+            return error("Unknown service: " + service);
+
+        try {
+            if (!dispatch(plugin, action, args != null ? args : new JSONArray(), callback))
+                return error("Invalid action: " + action);
+
+            return callback.await();
+        } catch (Exception e) {
+            return error(String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Call the action of the plugin, on the UI thread if it changes the
+     * state of the mode or the activity.
+     *
+     * @param plugin   The plugin to call.
+     * @param action   The action to execute.
+     * @param args     The exec() arguments.
+     * @param callback The callback to pass to the action.
+     *
+     * @return false if the action is invalid.
+     */
+    private static boolean dispatch (CordovaPlugin plugin, String action,
+                                     JSONArray args, Result callback)
+            throws Exception
+    {
+        if (!UI_ACTIONS.contains(action))
+            return plugin.execute(action, args, callback);
+
+        FutureTask<Boolean> task = new FutureTask<>(
+                () -> plugin.execute(action, args, callback));
+
+        plugin.cordova.getActivity().runOnUiThread(task);
+
+        return task.get(ACTION_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a failed result.
+     *
+     * @param message The error message.
+     */
+    private static JSONObject error (String message) throws JSONException
+    {
+        return new JSONObject().put("ok", false).put("result", message);
+    }
+
+    /**
+     * Callback context which keeps the first result instead of sending it
+     * to the web view.
+     */
+    private static final class Result extends CallbackContext
+    {
+        // Counted down once the result is there
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        // The first result sent by the action
+        private volatile PluginResult result;
+
+        Result (CordovaWebView webView)
+        {
+            super("batch", webView);
+        }
+
+        @Override
+        public void sendPluginResult (PluginResult pluginResult)
+        {
+            if (result != null)
+                return;
+
+            result = pluginResult;
+            latch.countDown();
+        }
+
+        /**
+         * Wait for the result of the action.
+         *
+         * @return The status and the result.
+         */
+        JSONObject await() throws JSONException, InterruptedException
+        {
+            if (!latch.await(ACTION_TIMEOUT, TimeUnit.MILLISECONDS))
+                return error("Timeout");
+
+            boolean ok = result.getStatus() == PluginResult.Status.OK.ordinal();
+
+            return new JSONObject()
+                    .put("ok", ok)
+                    .put("result", decode(result));
+        }
+
+        /**
+         * Returns the message of the result as JSON value.
+         *
+         * @param result The plugin result.
+         */
+        private static Object decode (PluginResult result) throws JSONException
+        {
+            String message = result.getMessage();
+
+            switch (result.getMessageType())
+            {
+                case PluginResult.MESSAGE_TYPE_NULL:
+                    return JSONObject.NULL;
+                case PluginResult.MESSAGE_TYPE_ARRAYBUFFER:
+                case PluginResult.MESSAGE_TYPE_BINARYSTRING:
+                    return message;
+                default:
+                    return new JSONTokener(message).nextValue();
+            }
+        }
+    }
+}
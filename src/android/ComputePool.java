@@ -0,0 +1,251 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Base64;
+
+import org.json.JSONTokener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Runs CPU-heavy operations like compression and hashing on native cores
+ * instead of the throttled JS thread of the web view. The pool is bounded
+ * by the number of cores and its threads time out when idle. While a task
+ * runs, a lease keeps the CPU awake.
+ */
+public final class ComputePool {
+
+    /**
+     * A native operation on a byte array.
+     */
+    public interface Operation
+    {
+        /**
+         * Run the operation.
+         *
+         * @param input The input bytes.
+         *
+         * @return The result as byte[] or String.
+         */
+        Object apply (byte[] input) throws Exception;
+    }
+
+    /**
+     * Receives the result of a task.
+     */
+    interface Callback
+    {
+        /**
+         * Called on a thread of the pool.
+         *
+         * @param result The result as byte[] or String, null on error.
+         * @param error  The error or null on success.
+         */
+        void onResult (Object result, Exception error);
+    }
+
+    // Charset of string inputs and outputs
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Max number of queued tasks
+    private static final int QUEUE_CAPACITY = 256;
+
+    // Time in ms after which idle threads are stopped
+    private static final long KEEP_ALIVE = 30 * 1000;
+
+    // Tag of the lease held while tasks are running
+    private static final String LEASE_TAG = "compute";
+
+    // Max time in ms a task may hold the lease
+    private static final long LEASE_TIMEOUT = 5 * 60 * 1000;
+
+    // Registered operations by name
+    private static final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    // The pool, created on first use
+    private static ThreadPoolExecutor executor;
+
+    static {
+        register("gzip", input -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 32);
+            write(new GZIPOutputStream(out), input);
+            return out.toByteArray();
+        });
+        register("gunzip", input -> readAll(new GZIPInputStream(new ByteArrayInputStream(input))));
+        register("deflate", input -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 32);
+            write(new DeflaterOutputStream(out), input);
+            return out.toByteArray();
+        });
+        register("inflate", input -> readAll(new InflaterInputStream(new ByteArrayInputStream(input))));
+        register("sha256", input -> toHex(MessageDigest.getInstance("SHA-256").digest(input)));
+        register("base64", input -> Base64.encodeToString(input, Base64.NO_WRAP));
+        register("minify", input -> new JSONTokener(new String(input, UTF_8)).nextValue().toString());
+    }
+
+    private ComputePool() {}
+
+    /**
+     * Register an operation which can be invoked from JS.
+     *
+     * @param name      The name of the operation.
+     * @param operation The operation.
+     */
+    public static void register (String name, Operation operation)
+    {
+        operations.put(name, operation);
+    }
+
+    /**
+     * Run the operation on the pool.
+     *
+     * @param context  The context used to hold the lease.
+     * @param name     The name of the operation.
+     * @param input    The input bytes.
+     * @param callback Receives the result.
+     *
+     * @throws IllegalArgumentException if the operation is unknown.
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full.
+     */
+    static void execute (Context context, String name, byte[] input, Callback callback)
+    {
+        Operation operation   = operations.get(name);
+        WakeLockLeases leases = WakeLockLeases.get(context);
+
+        if (operation == null)
+            throw new IllegalArgumentException("Unknown operation: " + name);
+
+        getExecutor().execute(() -> {
+            Object result   = null;
+            Exception error = null;
+
+            WakeLockLeases.Lease lease = leases.acquireLease(LEASE_TAG, LEASE_TIMEOUT);
+            Tracer.begin("compute:", name);
+
+            try {
+                result = operation.apply(input);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                Tracer.end();
+                leases.release(lease);
+            }
+
+            callback.onResult(result, error);
+        });
+    }
+
+    /**
+     * Returns the number of tasks which can be queued right now without
+     * getting rejected.
+     */
+    static int remainingCapacity()
+    {
+        return getExecutor().getQueue().remainingCapacity();
+    }
+
+    /**
+     * Returns the pool, created on first use with one thread per core.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor()
+    {
+        if (executor != null)
+            return executor;
+
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+        executor = new ThreadPoolExecutor(cores, cores, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(QUEUE_CAPACITY), task -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    task.run();
+                }, "backgroundmode-compute"));
+
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /**
+     * Write the bytes to the stream and close it.
+     */
+    private static void write (OutputStream out, byte[] bytes) throws IOException
+    {
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the stream until its end and close it.
+     */
+    private static byte[] readAll (InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer             = new byte[8192];
+
+        try {
+            for (int n; (n = in.read(buffer)) != -1;) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the bytes as lower case hex string.
+     */
+    private static String toHex (byte[] bytes)
+    {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex    = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2]     = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+}
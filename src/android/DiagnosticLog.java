@@ -0,0 +1,275 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Always-on log of the plugin, kept as structured entries in a fixed-size
+ * ring in memory. Writers claim a sequence number and swap the entry into
+ * its slot without taking a lock, so every component can log on any thread
+ * at the cost of one small allocation. Warnings and errors are mirrored to
+ * logcat, which is usually not available in the field.
+ */
+final class DiagnosticLog {
+
+    // Notable but expected event
+    static final int INFO = 0;
+
+    // Something failed but the plugin could go on
+    static final int WARN = 1;
+
+    // Something failed which affects the background mode
+    static final int ERROR = 2;
+
+    // Max number of entries in the ring, must be a power of two
+    static final int CAPACITY = 512;
+
+    // Names of the levels used in the dumps
+    private static final String[] LEVEL_NAMES = { "info", "warn", "error" };
+
+    // Name of the file written by dump()
+    private static final String FILE_NAME = "backgroundmode.diagnostics.log";
+
+    // Tag used for log messages
+    private static final String TAG = "BackgroundMode";
+
+    // Slots of the ring, indexed by the sequence number
+    private static final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(CAPACITY);
+
+    // Sequence number of the next entry
+    private static final AtomicLong nextSeq = new AtomicLong();
+
+    private DiagnosticLog() {}
+
+    /**
+     * Log a notable event.
+     *
+     * @param component The component which logs the entry.
+     * @param code      Short code of the event.
+     * @param message   The message of the entry.
+     */
+    static void info (String component, String code, String message)
+    {
+        write(INFO, component, code, message, null);
+    }
+
+    /**
+     * Log a failure the plugin could recover from.
+     *
+     * @param component The component which logs the entry.
+     * @param code      Short code of the failure.
+     * @param message   The message of the entry.
+     * @param error     The cause or null if none.
+     */
+    static void warn (String component, String code, String message, Throwable error)
+    {
+        write(WARN, component, code, message, error);
+    }
+
+    /**
+     * Log a failure which affects the background mode.
+     *
+     * @param component The component which logs the entry.
+     * @param code      Short code of the failure.
+     * @param message   The message of the entry.
+     * @param error     The cause or null if none.
+     */
+    static void error (String component, String code, String message, Throwable error)
+    {
+        write(ERROR, component, code, message, error);
+    }
+
+    /**
+     * Put the entry into its slot of the ring. If a slower writer lost the
+     * race against one which already wrapped around, the newer entry wins.
+     */
+    private static void write (int level, String component, String code,
+                               String message, Throwable error)
+    {
+        long seq    = nextSeq.getAndIncrement();
+        int index   = (int) (seq & (CAPACITY - 1));
+        String text = error != null ? message + ": " + error : message;
+        Entry entry = new Entry(seq, level, component, code, text);
+        Entry current;
+
+        do {
+            current = entries.get(index);
+
+            if (current != null && current.seq > seq)
+                break;
+        } while (!entries.compareAndSet(index, current, entry));
+
+        if (level == WARN) {
+            Log.w(TAG, component + "/" + code + ": " + message, error);
+        } else if (level == ERROR) {
+            Log.e(TAG, component + "/" + code + ": " + message, error);
+        }
+    }
+
+    /**
+     * Read the entries starting at the cursor, the oldest first. Reading
+     * stops at the first entry which is claimed by a writer but not yet
+     * published, so that the next read picks it up.
+     *
+     * @param cursor The sequence number of the first entry to read.
+     * @param limit  The max number of entries to read.
+     *
+     * @return The entries, the cursor for the next read and the number of
+     *         entries overwritten before they could be read.
+     */
+    static JSONObject read (long cursor, int limit) throws JSONException
+    {
+        JSONArray list = new JSONArray();
+        long next      = nextSeq.get();
+        long first     = Math.max(0, next - CAPACITY);
+        long seq       = Math.max(cursor, first);
+        long dropped   = Math.max(0, first - cursor);
+
+        for (; seq < next && list.length() < limit; seq++) {
+            Entry entry = entries.get((int) (seq & (CAPACITY - 1)));
+
+            if (entry == null || entry.seq < seq)
+                break;
+
+            if (entry.seq > seq) {
+                dropped++;
+            } else {
+                list.put(entry.toJSON());
+            }
+        }
+
+        return new JSONObject()
+                .put("entries", list)
+                .put("cursor", seq)
+                .put("dropped", dropped);
+    }
+
+    /**
+     * Write all entries of the ring as text to a file in the files dir,
+     * replacing the previous dump.
+     *
+     * @param context The context used to find the files dir.
+     *
+     * @return The written file.
+     */
+    static File dump (Context context) throws IOException
+    {
+        File file  = new File(context.getFilesDir(), FILE_NAME);
+        long next  = nextSeq.get();
+        long seq   = Math.max(0, next - CAPACITY);
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (; seq < next; seq++) {
+                Entry entry = get(seq);
+
+                if (entry != null) {
+                    writer.write(entry.toString());
+                    writer.newLine();
+                }
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Returns the entry with the sequence number or null if it has been
+     * overwritten or is not written yet.
+     *
+     * @param seq The sequence number of the entry.
+     */
+    private static Entry get (long seq)
+    {
+        Entry entry = entries.get((int) (seq & (CAPACITY - 1)));
+
+        return entry != null && entry.seq == seq ? entry : null;
+    }
+
+    /**
+     * A single immutable entry of the log.
+     */
+    private static final class Entry
+    {
+        // Sequence number of the entry
+        final long seq;
+
+        // Wall time when the entry was written
+        final long time = System.currentTimeMillis();
+
+        // Name of the thread which wrote the entry
+        final String thread = Thread.currentThread().getName();
+
+        // One of INFO, WARN or ERROR
+        final int level;
+
+        // The component which wrote the entry
+        final String component;
+
+        // Short code of the event
+        final String code;
+
+        // The message including the cause
+        final String message;
+
+        Entry (long seq, int level, String component, String code, String message)
+        {
+            this.seq       = seq;
+            this.level     = level;
+            this.component = component;
+            this.code      = code;
+            this.message   = message;
+        }
+
+        JSONObject toJSON() throws JSONException
+        {
+            return new JSONObject()
+                    .put("seq", seq)
+                    .put("time", time)
+                    .put("level", LEVEL_NAMES[level])
+                    .put("thread", thread)
+                    .put("component", component)
+                    .put("code", code)
+                    .put("message", message);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%d %tF %<tT.%<tL %s [%s] %s/%s: %s",
+                    seq, time, LEVEL_NAMES[level], thread, component, code, message);
+        }
+    }
+}
@@ -21,7 +21,6 @@
 
 package de.appplant.cordova.plugin.background;
 
-import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.*;
 import android.content.Context;
@@ -30,12 +29,16 @@ import android.content.res.Resources;
 import android.graphics.drawable.Icon;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.Looper;
+import android.os.SystemClock;
 import org.json.JSONObject;
 import android.support.v4.app.NotificationCompat;
 
-import static android.os.PowerManager.PARTIAL_WAKE_LOCK;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Puts the service in a foreground state, where the system considers it to be
@@ -58,11 +61,73 @@ public class ForegroundService extends Service {
     // Default icon of the background notification
     private static final String NOTIFICATION_ICON = "icon";
 
+    // Minimum time in ms between two progress or counter updates
+    private static final long FRAME_INTERVAL = 250;
+
+    // Settings which can be applied to the retained builder
+    private static final Set<String> PATCHABLE_KEYS = new HashSet<>(Arrays.asList(
+            "title", "text", "subText", "bigText", "color", "counterText",
+            "showWhen", "chronometer"));
+
     // Binder given to clients
     private final IBinder binder = new ForegroundBinder();
 
-    // Partial wake lock to prevent the app from going to sleep when locked
-    private PowerManager.WakeLock wakeLock;
+    // Used to apply coalesced updates on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Builder of the currently shown notification or null if none is shown
+    private NotificationCompat.Builder builder;
+
+    // Settings of the last notification update
+    private JSONObject shownSettings;
+
+    // Latest requested progress, applied with the next frame
+    private Progress pendingProgress;
+
+    // Progress shown by the current notification
+    private Progress shownProgress;
+
+    // Sub text of the settings, shown while the progress has no ETA
+    private String subText;
+
+    // Template of the counter text of the current notification
+    private String counterTemplate;
+
+    // Counter text shown by the current notification
+    private String shownCounterText;
+
+    // Flag indicates if a counter has been changed since the last frame
+    private boolean isCounterDirty = false;
+
+    // Flag indicates if a frame is scheduled
+    private boolean isFrameScheduled = false;
+
+    // Uptime of the last applied frame
+    private long lastFrameTime = 0;
+
+    // Applies the latest progress and counters to the notification
+    private final Runnable frame = this::applyFrame;
+
+    // Name and description of the created notification channel
+    private String channelSpec;
+
+    // Intent to resume the app, created once per service
+    private PendingIntent contentIntent;
+
+    // Intent to close the app, created once per service
+    private PendingIntent closeIntent;
+
+    // Flag indicates if the service has left the foreground state
+    private boolean isDemoted = false;
+
+    // Writes the heartbeat of the service
+    private final Runnable heartbeat = new Runnable() {
+        @Override
+        public void run() {
+            ServiceMonitor.beat(ForegroundService.this);
+            handler.postDelayed(this, ServiceMonitor.HEARTBEAT_INTERVAL);
+        }
+    };
 
     /**
      * Allow clients to call on to the service.
@@ -94,7 +159,13 @@ public class ForegroundService extends Service {
     public void onCreate()
     {
         super.onCreate();
+        Tracer.begin("service.onCreate");
+        Metrics.increment(Metrics.SERVICE_STARTS);
+        ServiceMonitor.onCreate(this);
+        handler.postDelayed(heartbeat, ServiceMonitor.HEARTBEAT_INTERVAL);
         keepAwake();
+        NotificationCounters.setListener(this::invalidateCounters);
+        Tracer.end();
     }
 
     /**
@@ -104,37 +175,127 @@ public class ForegroundService extends Service {
     public void onDestroy()
     {
         super.onDestroy();
+        NotificationCounters.setListener(null);
+        handler.removeCallbacks(frame);
+        handler.removeCallbacks(heartbeat);
+        ServiceMonitor.onDestroy(this);
         sleepWell();
     }
 
+    /**
+     * Pass the memory pressure on to the native listeners.
+     */
+    @Override
+    public void onTrimMemory (int level)
+    {
+        super.onTrimMemory(level);
+        ListenerRegistry.trimMemory(level);
+    }
+
+    /**
+     * Schedule a restart as the process might get killed along with the
+     * removed task.
+     */
+    @Override
+    public void onTaskRemoved (Intent rootIntent)
+    {
+        super.onTaskRemoved(rootIntent);
+        ServiceMonitor.onTaskRemoved(this);
+    }
+
     /**
      * Prevent Android from stopping the background service automatically.
      */
     @Override
     public int onStartCommand (Intent intent, int flags, int startId) {
+        if (intent == null) {
+            SessionHistory.record(this, SessionHistory.TYPE_SERVICE_RESTART, 0, 0);
+            DiagnosticLog.info("service", "restart", "Restarted by the system");
+            ServiceMonitor.onRestart(this);
+        } else if (ServiceMonitor.ACTION_RESTART.equals(intent.getAction())) {
+            SessionHistory.record(this, SessionHistory.TYPE_SERVICE_RESTART, 0, 1);
+            DiagnosticLog.info("service", "restart", "Restarted by the plugin");
+            ServiceMonitor.onRestart(this);
+            confirmForeground();
+        } else {
+            return START_STICKY;
+        }
+
+        // The activity came back before the restart, so its resume could not
+        // stop the service and the notification would stay until the next pause
+        if (isAppInForeground()) {
+            DiagnosticLog.info("service", "restart", "Stopped as the app is in foreground");
+            ServiceMonitor.expect(this, false);
+            stopForeground(true);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
         return START_STICKY;
     }
 
+    /**
+     * Returns true if an activity of the app is in foreground.
+     */
+    private boolean isAppInForeground()
+    {
+        ActivityManager.RunningAppProcessInfo info = new ActivityManager.RunningAppProcessInfo();
+
+        ActivityManager.getMyMemoryState(info);
+
+        return info.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+    }
+
+    /**
+     * Services started through startForegroundService() have to call
+     * startForeground() again even if they are already running.
+     */
+    private void confirmForeground()
+    {
+        JSONObject settings = shownSettings != null
+                ? shownSettings : BackgroundMode.getSettings();
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O
+                || settings.optBoolean("silent", false))
+            return;
+
+        enterForeground(builder != null ? builder.build() : makeNotification());
+    }
+
+    /**
+     * Put the service into the foreground state. Android 12+ refuses that
+     * for services started from background without an exemption, in which
+     * case the service stops itself instead of crashing the process.
+     *
+     * @param notification The notification to show.
+     */
+    private void enterForeground (Notification notification)
+    {
+        try {
+            startForeground(NOTIFICATION_ID, notification);
+        } catch (IllegalStateException e) {
+            // ForegroundServiceStartNotAllowedException on Android 12+
+            DiagnosticLog.error("service", "foreground", "Could not enter the foreground state", e);
+            stopSelf();
+        }
+    }
+
     /**
      * Put the service in a foreground state to prevent app from being killed
      * by the OS.
      */
-    @SuppressLint("WakelockTimeout")
     private void keepAwake()
     {
         JSONObject settings = BackgroundMode.getSettings();
         boolean isSilent    = settings.optBoolean("silent", false);
 
         if (!isSilent) {
-            startForeground(NOTIFICATION_ID, makeNotification());
+            enterForeground(makeNotification());
         }
 
-        PowerManager pm = (PowerManager)getSystemService(POWER_SERVICE);
-
-        wakeLock = pm.newWakeLock(
-                PARTIAL_WAKE_LOCK, "backgroundmode:wakelock");
-
-        wakeLock.acquire();
+        // Partial wake lock to prevent the app from going to sleep when locked
+        WakeLockManager.get(this).acquire(
+                BackgroundSession.SERVICE_LOCK, WakeLockManager.PARTIAL, 0);
     }
 
     /**
@@ -145,10 +306,7 @@ public class ForegroundService extends Service {
         stopForeground(true);
         getNotificationManager().cancel(NOTIFICATION_ID);
 
-        if (wakeLock != null) {
-            wakeLock.release();
-            wakeLock = null;
-        }
+        WakeLockManager.get(this).release(BackgroundSession.SERVICE_LOCK);
     }
 
     /**
@@ -168,33 +326,35 @@ public class ForegroundService extends Service {
      */
     private Notification makeNotification (JSONObject settings)
     {
-        // use channelid for Oreo and higher
-        String CHANNEL_ID = "cordova-plugin-background-mode-id";
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            // The user-visible name of the channel.
-            CharSequence name = settings.optString("channelName", "cordova-plugin-background-mode");
-            // The user-visible description of the channel.
-            String description = settings.optString("channelDescription", "cordova-plugin-background-moden notification");
-
-            int importance = NotificationManager.IMPORTANCE_LOW;
+        Tracer.begin("makeNotification");
 
-            NotificationChannel mChannel = new NotificationChannel(CHANNEL_ID, name, importance);
+        try {
+            return buildNotification(settings);
+        } finally {
+            Tracer.end();
+        }
+    }
 
-            // Configure the notification channel.
-            mChannel.setDescription(description);
+    /**
+     * Build the notification with the given settings.
+     *
+     * @param settings The config settings
+     */
+    private Notification buildNotification (JSONObject settings)
+    {
+        // use channelid for Oreo and higher
+        String CHANNEL_ID = "cordova-plugin-background-mode-id";
+        createChannel(CHANNEL_ID, settings);
 
-            getNotificationManager().createNotificationChannel(mChannel);
-        }
         String title    = settings.optString("title", NOTIFICATION_TITLE);
-        String text     = settings.optString("text", NOTIFICATION_TEXT);
+        String text     = getText(settings);
         boolean bigText = settings.optBoolean("bigText", false);
         String subText = settings.optString("subText", "");
         String visibility = settings.optString("visibility", "");
 
+        this.subText = subText.equals("") ? null : subText;
+
         Context context = getApplicationContext();
-        String pkgName  = context.getPackageName();
-        Intent intent   = context.getPackageManager()
-                .getLaunchIntentForPackage(pkgName);
 
         int smallIcon = getIconResId(settings);
         if (smallIcon == 0) { //If no icon at all was found, fall back to the app's icon
@@ -208,18 +368,19 @@ public class ForegroundService extends Service {
                 .setSmallIcon(smallIcon)
                 .setShowWhen(settings.optBoolean("showWhen", true));
 
+        if (settings.optBoolean("chronometer", false)) {
+            notification.setShowWhen(true)
+                    .setUsesChronometer(true)
+                    .setWhen(BackgroundSession.getStartedAt());
+        }
+
         if (!subText.equals("")) {
             notification.setSubText(subText);
         }
 
         if (settings.optBoolean("allowClose", false)) {
-
-            final Intent clostAppIntent = new Intent("com.backgroundmode.close" + pkgName);
-            // https://github.com/WolfWalter/cordova-plugin-usb-serial/pull/1/files
-            // https://stackoverflow.com/questions/67045607/how-to-resolve-missing-pendingintent-mutability-flag-lint-warning-in-android-a
-            final PendingIntent closeIntent = PendingIntent.getBroadcast(context, 1337, clostAppIntent, 0);
             final String closeIconName = settings.optString("closeIcon", "power");
-            NotificationCompat.Action.Builder closeAction = new NotificationCompat.Action.Builder(getIconResId(closeIconName), settings.optString("closeTitle", "Close"), closeIntent);
+            NotificationCompat.Action.Builder closeAction = new NotificationCompat.Action.Builder(getIconResId(closeIconName), settings.optString("closeTitle", "Close"), getCloseIntent());
             notification.addAction(closeAction.build());
         }
 
@@ -237,18 +398,141 @@ public class ForegroundService extends Service {
         }
 
         setColor(notification, settings);
+        setProgress(notification, shownProgress);
 
-        if (intent != null && settings.optBoolean("resume")) {
-            intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
-            PendingIntent contentIntent = PendingIntent.getActivity(
-                    context, NOTIFICATION_ID, intent,
-                    PendingIntent.FLAG_MUTABLE);
+        if (settings.optBoolean("resume")) {
+            notification.setContentIntent(getContentIntent());
+        }
+
+        builder       = notification;
+        shownSettings = settings;
+
+        return notification.build();
+    }
 
+    /**
+     * Returns the text of the notification, rendered from the counter
+     * template if there is one.
+     *
+     * @param settings The config settings
+     */
+    private String getText (JSONObject settings)
+    {
+        String template = settings.optString("counterText", "");
 
-            notification.setContentIntent(contentIntent);
+        if (template.isEmpty()) {
+            counterTemplate  = null;
+            shownCounterText = null;
+            return settings.optString("text", NOTIFICATION_TEXT);
         }
 
-        return notification.build();
+        counterTemplate  = template;
+        shownCounterText = NotificationCounters.render(template);
+
+        return shownCounterText;
+    }
+
+    /**
+     * Returns the intent to resume the app. The launch intent is resolved
+     * only once per service.
+     *
+     * @return The intent or null if the app has no launch intent.
+     */
+    private PendingIntent getContentIntent()
+    {
+        if (contentIntent != null)
+            return contentIntent;
+
+        Context context = getApplicationContext();
+        Intent intent   = context.getPackageManager()
+                .getLaunchIntentForPackage(context.getPackageName());
+
+        if (intent == null)
+            return null;
+
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+        contentIntent = PendingIntent.getActivity(
+                context, NOTIFICATION_ID, intent, getPendingIntentFlags());
+
+        return contentIntent;
+    }
+
+    /**
+     * Returns the intent to close the app, created only once per service.
+     */
+    private PendingIntent getCloseIntent()
+    {
+        if (closeIntent != null)
+            return closeIntent;
+
+        Context context = getApplicationContext();
+        String pkgName  = context.getPackageName();
+        Intent intent   = new Intent("com.backgroundmode.close" + pkgName);
+
+        intent.setPackage(pkgName);
+
+        closeIntent = PendingIntent.getBroadcast(
+                context, 1337, intent, getPendingIntentFlags());
+
+        return closeIntent;
+    }
+
+    /**
+     * Returns the flags for the pending intents which have to be immutable
+     * starting with Android 12.
+     */
+    private static int getPendingIntentFlags()
+    {
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Create the notification channel once per service or if its name or
+     * description has been changed.
+     *
+     * @param id The ID of the channel.
+     * @param settings The config settings
+     */
+    private void createChannel (String id, JSONObject settings)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return;
+
+        // The user-visible name of the channel.
+        CharSequence name = settings.optString("channelName", "cordova-plugin-background-mode");
+        // The user-visible description of the channel.
+        String description = settings.optString("channelDescription", "cordova-plugin-background-moden notification");
+        String spec = name + "\n" + description;
+
+        if (spec.equals(channelSpec))
+            return;
+
+        int importance = NotificationManager.IMPORTANCE_LOW;
+
+        NotificationChannel mChannel = new NotificationChannel(id, name, importance);
+
+        // Configure the notification channel.
+        mChannel.setDescription(description);
+
+        getNotificationManager().createNotificationChannel(mChannel);
+        channelSpec = spec;
+    }
+
+    /**
+     * Run the task on the thread of the service.
+     *
+     * @param task The task to run.
+     */
+    protected void post (Runnable task)
+    {
+        handler.post(task);
     }
 
     /**
@@ -260,14 +544,287 @@ public class ForegroundService extends Service {
     {
         boolean isSilent = settings.optBoolean("silent", false);
 
+        if (isDemoted)
+            return;
+
         if (isSilent) {
+            // Frames must not bring the notification back
+            builder       = null;
+            shownSettings = settings;
             stopForeground(true);
             return;
         }
 
         Notification notification = makeNotification(settings);
         getNotificationManager().notify(NOTIFICATION_ID, notification);
+        Metrics.increment(Metrics.NOTIFY_CALLS);
+
+    }
+
+    /**
+     * Leave the foreground state and remove the notification while the
+     * service keeps running. Later updates of the notification are ignored.
+     */
+    protected void demote()
+    {
+        isDemoted = true;
+        builder   = null;
+        stopForeground(true);
+        getNotificationManager().cancel(NOTIFICATION_ID);
+    }
+
+    /**
+     * Update only the changed parts of the notification. Falls back to a
+     * rebuild if any of the keys can't be applied to the retained builder.
+     *
+     * @param settings The config settings
+     * @param keys The changed keys or null if unknown.
+     */
+    protected void updateNotification (JSONObject settings, Set<String> keys)
+    {
+        if (keys == null || builder == null || !PATCHABLE_KEYS.containsAll(keys)) {
+            updateNotification(settings);
+            return;
+        }
+
+        if (keys.isEmpty() || settings.optBoolean("silent", false))
+            return;
+
+        shownSettings = settings;
+
+        Tracer.begin("patchNotification");
+
+        try {
+            if (keys.contains("title")) {
+                builder.setContentTitle(settings.optString("title", NOTIFICATION_TITLE));
+            }
+
+            if (keys.contains("text") || keys.contains("counterText") || keys.contains("bigText")) {
+                String text = getText(settings);
+
+                builder.setContentText(text);
+
+                if (settings.optBoolean("bigText", false) || text.contains("\n")) {
+                    builder.setStyle(new NotificationCompat.BigTextStyle().bigText(text));
+                } else {
+                    builder.setStyle(null);
+                }
+            }
+
+            if (keys.contains("subText")) {
+                String subText = settings.optString("subText", "");
+
+                this.subText = subText.equals("") ? null : subText;
+                setProgress(builder, shownProgress);
+            }
+
+            if (keys.contains("color")) {
+                builder.setColor(NotificationCompat.COLOR_DEFAULT);
+                setColor(builder, settings);
+            }
+
+            if (keys.contains("showWhen") || keys.contains("chronometer")) {
+                boolean chronometer = settings.optBoolean("chronometer", false);
+
+                builder.setUsesChronometer(chronometer)
+                        .setShowWhen(chronometer || settings.optBoolean("showWhen", true))
+                        .setWhen(chronometer ? BackgroundSession.getStartedAt() : System.currentTimeMillis());
+            }
+
+            getNotificationManager().notify(NOTIFICATION_ID, builder.build());
+            Metrics.increment(Metrics.NOTIFY_CALLS);
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Update the progress of the notification. Rapid updates are merged and
+     * applied to the retained builder at most once per frame interval.
+     *
+     * @param progress The new progress or null to remove the progress bar.
+     */
+    protected void updateProgress (Progress progress)
+    {
+        synchronized (frame)
+        {
+            pendingProgress = progress;
+
+            if (isFrameScheduled)
+                return;
+
+            isFrameScheduled = true;
+        }
+
+        scheduleFrame();
+    }
+
+    /**
+     * Called from any thread if a counter has been changed. The counter
+     * text gets rendered with the next frame.
+     */
+    private void invalidateCounters()
+    {
+        synchronized (frame)
+        {
+            isCounterDirty = true;
+
+            if (isFrameScheduled)
+                return;
+
+            isFrameScheduled = true;
+        }
+
+        scheduleFrame();
+    }
+
+    /**
+     * Post the next frame not earlier than the frame interval after the
+     * last one.
+     */
+    private void scheduleFrame()
+    {
+        long delay = lastFrameTime + FRAME_INTERVAL - SystemClock.uptimeMillis();
+
+        handler.postDelayed(frame, Math.max(0, delay));
+    }
+
+    /**
+     * Apply the latest requested progress and the counters to the
+     * notification.
+     */
+    private void applyFrame()
+    {
+        Progress progress;
+        boolean countersChanged;
+
+        synchronized (frame)
+        {
+            progress         = pendingProgress;
+            countersChanged  = isCounterDirty;
+            isCounterDirty   = false;
+            isFrameScheduled = false;
+        }
+
+        lastFrameTime = SystemClock.uptimeMillis();
+
+        JSONObject settings = shownSettings;
+        boolean changed     = false;
+
+        if (progress == null ? shownProgress != null : !progress.equals(shownProgress)) {
+            shownProgress = progress;
+            changed       = true;
+        }
+
+        if (countersChanged && counterTemplate != null) {
+            String text = NotificationCounters.render(counterTemplate);
+
+            if (!text.equals(shownCounterText)) {
+                shownCounterText = text;
+                changed          = true;
+            }
+        }
+
+        if (!changed || builder == null)
+            return;
+
+        Tracer.begin("applyFrame");
+
+        try {
+            setProgress(builder, shownProgress);
+            setCounterText(builder, settings);
+            getNotificationManager().notify(NOTIFICATION_ID, builder.build());
+            Metrics.increment(Metrics.NOTIFY_CALLS);
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Set the rendered counter text as text of the notification.
+     *
+     * @param notification A Notification.Builder instance
+     * @param settings The config settings
+     */
+    private void setCounterText (NotificationCompat.Builder notification,
+                                 JSONObject settings)
+    {
+        if (counterTemplate == null)
+            return;
 
+        notification.setContentText(shownCounterText);
+
+        if (settings.optBoolean("bigText", false) || shownCounterText.contains("\n")) {
+            notification.setStyle(
+                    new NotificationCompat.BigTextStyle().bigText(shownCounterText));
+        }
+    }
+
+    /**
+     * Set the progress bar and the ETA text of the notification. Without an
+     * ETA the sub text of the settings is shown.
+     *
+     * @param notification A Notification.Builder instance
+     * @param progress The progress to show or null to remove it.
+     */
+    private void setProgress (NotificationCompat.Builder notification,
+                              Progress progress)
+    {
+        if (progress == null) {
+            notification.setProgress(0, 0, false);
+            notification.setSubText(subText);
+            return;
+        }
+
+        notification.setProgress(progress.max, progress.current, progress.indeterminate);
+        notification.setSubText(progress.eta != null ? progress.eta : subText);
+    }
+
+    /**
+     * Progress of a long-running job shown by the notification.
+     */
+    static final class Progress
+    {
+        // Upper bound of the progress
+        final int max;
+
+        // Current value of the progress
+        final int current;
+
+        // Flag indicates if the progress is indeterminate
+        final boolean indeterminate;
+
+        // Optional text with the estimated time left
+        final String eta;
+
+        Progress (int max, int current, boolean indeterminate, String eta)
+        {
+            this.max           = indeterminate ? 0 : Math.max(0, max);
+            this.current       = indeterminate ? 0 : Math.max(0, Math.min(current, max));
+            this.indeterminate = indeterminate;
+            this.eta           = eta;
+        }
+
+        @Override
+        public boolean equals (Object obj)
+        {
+            if (!(obj instanceof Progress))
+                return false;
+
+            Progress other = (Progress) obj;
+
+            return max == other.max && current == other.current
+                    && indeterminate == other.indeterminate
+                    && (eta == null ? other.eta == null : eta.equals(other.eta));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = 31 * max + current;
+            hash = 31 * hash + (indeterminate ? 1 : 0);
+            return 31 * hash + (eta == null ? 0 : eta.hashCode());
+        }
     }
 
     /**
@@ -357,7 +914,7 @@ public class ForegroundService extends Service {
             int aRGB = Integer.parseInt(hex, 16) + 0xFF000000;
             notification.setColor(aRGB);
         } catch (Exception e) {
-            e.printStackTrace();
+            DiagnosticLog.warn("service", "color", "Invalid color " + hex, e);
         }
     }
 
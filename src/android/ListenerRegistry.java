@@ -0,0 +1,162 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Native listeners of the background mode with the executor each of them
+ * wants to be called on. Dispatching only iterates a snapshot of the list,
+ * so listeners can be added and removed from any thread at any time.
+ */
+final class ListenerRegistry {
+
+    /**
+     * Delivers a single event to a listener.
+     */
+    private interface Delivery
+    {
+        void deliver (BackgroundModeListener listener);
+    }
+
+    // Registered listeners
+    private static final List<Entry> entries = new CopyOnWriteArrayList<>();
+
+    private ListenerRegistry() {}
+
+    /**
+     * Add a listener, a listener added twice gets the new executor.
+     *
+     * @param listener The listener to add.
+     * @param executor The executor to call the listener on.
+     */
+    static synchronized void add (BackgroundModeListener listener, Executor executor)
+    {
+        if (listener == null || executor == null)
+            throw new IllegalArgumentException("Listener and executor required");
+
+        remove(listener);
+        entries.add(new Entry(listener, executor));
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    static synchronized void remove (BackgroundModeListener listener)
+    {
+        for (Entry entry : entries) {
+            if (entry.listener == listener) {
+                entries.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Notify the listeners that the mode got activated.
+     */
+    static void activate()
+    {
+        dispatch(BackgroundModeListener::onActivate);
+    }
+
+    /**
+     * Notify the listeners that the mode got deactivated.
+     */
+    static void deactivate()
+    {
+        dispatch(BackgroundModeListener::onDeactivate);
+    }
+
+    /**
+     * Notify the listeners about a failure.
+     *
+     * @param message The reason of the failure.
+     */
+    static void failure (String message)
+    {
+        dispatch(listener -> listener.onFailure(message));
+    }
+
+    /**
+     * Notify the listeners that the service is connected.
+     */
+    static void serviceConnected()
+    {
+        dispatch(BackgroundModeListener::onServiceConnected);
+    }
+
+    /**
+     * Notify the listeners that the service has to trim its memory.
+     *
+     * @param level The trim level.
+     */
+    static void trimMemory (int level)
+    {
+        dispatch(listener -> listener.onTrimMemory(level));
+    }
+
+    /**
+     * Hand the event over to the executor of each listener. A failing
+     * listener or executor does not affect the others.
+     *
+     * @param delivery Calls the listener method of the event.
+     */
+    private static void dispatch (Delivery delivery)
+    {
+        for (Entry entry : entries) {
+            try {
+                entry.executor.execute(() -> {
+                    try {
+                        delivery.deliver(entry.listener);
+                    } catch (RuntimeException e) {
+                        DiagnosticLog.warn("listeners", "deliver", "Listener " + entry.listener + " failed", e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                DiagnosticLog.warn("listeners", "reject", "Executor of " + entry.listener + " rejected the event", e);
+            }
+        }
+    }
+
+    /**
+     * A registered listener and its executor.
+     */
+    private static final class Entry
+    {
+        // The listener to call
+        final BackgroundModeListener listener;
+
+        // The executor to call the listener on
+        final Executor executor;
+
+        Entry (BackgroundModeListener listener, Executor executor)
+        {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+}
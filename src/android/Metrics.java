@@ -0,0 +1,159 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of counters and gauges. Updates are lock-free so
+ * that every component of the plugin can record them on any thread.
+ */
+final class Metrics {
+
+    // Number of times the foreground service has been created
+    static final String SERVICE_STARTS = "service.starts";
+
+    // Number of notifications posted to the notification manager
+    static final String NOTIFY_CALLS = "notify.calls";
+
+    // Number of acquired wake locks
+    static final String WAKE_LOCK_ACQUIRES = "wakelock.acquires";
+
+    // Number of events fired into the web view
+    static final String EVENTS_FIRED = "events.fired";
+
+    // Number of events not fired as there was no listener in JS
+    static final String EVENTS_SUPPRESSED = "events.suppressed";
+
+    // Number of pings the web view didn't answer in time
+    static final String WEBVIEW_STALLS = "webview.stalls";
+
+    // Round-trip time in ms of the last ping answered by the web view
+    static final String WEBVIEW_RTT_MS = "webview.rtt.ms";
+
+    // Time in ms the plugin added to the app start
+    static final String STARTUP_MS = "startup.ms";
+
+    // Counters which only grow
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    // Gauges which hold the last recorded value
+    private static final ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    /**
+     * Increment the counter by one.
+     *
+     * @param name The name of the counter.
+     */
+    static void increment (String name)
+    {
+        add(name, 1);
+    }
+
+    /**
+     * Add the delta to the counter.
+     *
+     * @param name  The name of the counter.
+     * @param delta The value to add.
+     */
+    static void add (String name, long delta)
+    {
+        get(counters, name).addAndGet(delta);
+    }
+
+    /**
+     * Set the value of the gauge.
+     *
+     * @param name  The name of the gauge.
+     * @param value The new value.
+     */
+    static void set (String name, long value)
+    {
+        get(gauges, name).set(value);
+    }
+
+    /**
+     * Returns the current value of the counter.
+     *
+     * @param name The name of the counter.
+     */
+    static long count (String name)
+    {
+        AtomicLong value = counters.get(name);
+
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Returns all counters and gauges.
+     */
+    static JSONObject toJSON() throws JSONException
+    {
+        return new JSONObject()
+                .put("counters", toJSON(counters))
+                .put("gauges", toJSON(gauges));
+    }
+
+    /**
+     * Returns the values of the registry as JSON.
+     *
+     * @param registry The counters or gauges.
+     */
+    private static JSONObject toJSON (Map<String, AtomicLong> registry)
+            throws JSONException
+    {
+        JSONObject json = new JSONObject();
+
+        for (Map.Entry<String, AtomicLong> entry : registry.entrySet()) {
+            json.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return json;
+    }
+
+    /**
+     * Returns the value of the registry for the name, creating it if needed.
+     *
+     * @param registry The counters or gauges.
+     * @param name     The name of the value.
+     */
+    private static AtomicLong get (ConcurrentHashMap<String, AtomicLong> registry,
+                                   String name)
+    {
+        AtomicLong value = registry.get(name);
+
+        if (value != null)
+            return value;
+
+        AtomicLong created = new AtomicLong();
+        AtomicLong current = registry.putIfAbsent(name, created);
+
+        return current != null ? current : created;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counters shown by the background notification. The service renders them
+ * into the counterText template, e.g. "{synced} items synced", so that JS
+ * or native code only has to bump a number instead of rebuilding the
+ * notification.
+ */
+public final class NotificationCounters {
+
+    // Placeholders of the template like {name}
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(\\w+)\\}");
+
+    // Values of the counters by name
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    // Gets notified if a counter has been changed
+    private static volatile Runnable listener;
+
+    private NotificationCounters() {}
+
+    /**
+     * Add the delta to the counter.
+     *
+     * @param name  The name of the counter.
+     * @param delta The value to add.
+     */
+    public static void add (String name, long delta)
+    {
+        AtomicLong counter = counters.get(name);
+
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong());
+            counter = counters.get(name);
+        }
+
+        counter.addAndGet(delta);
+        changed();
+    }
+
+    /**
+     * Set the counter to the value.
+     *
+     * @param name  The name of the counter.
+     * @param value The new value.
+     */
+    public static void set (String name, long value)
+    {
+        AtomicLong counter = counters.putIfAbsent(name, new AtomicLong(value));
+
+        if (counter != null) {
+            counter.set(value);
+        }
+
+        changed();
+    }
+
+    /**
+     * Remove all counters.
+     */
+    public static void clear()
+    {
+        counters.clear();
+        changed();
+    }
+
+    /**
+     * Returns the value of the counter or 0 if unknown.
+     *
+     * @param name The name of the counter.
+     */
+    public static long get (String name)
+    {
+        AtomicLong counter = counters.get(name);
+
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * Replace the placeholders of the template by the counter values.
+     *
+     * @param template The template like "{synced} items synced".
+     */
+    static String render (String template)
+    {
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        StringBuffer text = new StringBuffer(template.length() + 16);
+
+        while (matcher.find()) {
+            matcher.appendReplacement(text, String.valueOf(get(matcher.group(1))));
+        }
+
+        matcher.appendTail(text);
+
+        return text.toString();
+    }
+
+    /**
+     * Set the listener which gets notified about changes.
+     *
+     * @param changeListener The listener or null to remove it.
+     */
+    static void setListener (Runnable changeListener)
+    {
+        listener = changeListener;
+    }
+
+    /**
+     * Notify the listener about a change.
+     */
+    private static void changed()
+    {
+        Runnable changeListener = listener;
+
+        if (changeListener != null) {
+            changeListener.run();
+        }
+    }
+}
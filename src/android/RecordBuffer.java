@@ -0,0 +1,187 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Native store for binary records handed over by the web view. Every record
+ * is kept as a 4 byte big-endian length followed by its payload, which is
+ * also the layout returned by read() so the JS side can walk the buffer with
+ * a DataView without any JSON in between. The buffer is bounded, records
+ * which don't fit anymore are rejected until the buffer gets drained.
+ */
+class RecordBuffer {
+
+    // Size of the length prefix in front of each record
+    static final int HEADER_SIZE = 4;
+
+    // Initial capacity of the backing buffer
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    // Max capacity of the backing buffer
+    static final int MAX_CAPACITY = 8 * 1024 * 1024;
+
+    // Backing buffer, allocated with the first record
+    private ByteBuffer buffer;
+
+    // Number of records in the buffer
+    private int count = 0;
+
+    /**
+     * Append a single record.
+     *
+     * @param record The payload of the record.
+     *
+     * @return The number of stored records.
+     *
+     * @throws IllegalStateException if the buffer is full.
+     */
+    synchronized int append (ByteBuffer record)
+    {
+        ensureCapacity(HEADER_SIZE + record.remaining());
+
+        buffer.putInt(record.remaining());
+        buffer.put(record);
+
+        return ++count;
+    }
+
+    /**
+     * Append a buffer of already framed records.
+     *
+     * @param records Length-prefixed records as returned by read().
+     *
+     * @return The number of stored records.
+     *
+     * @throws IllegalStateException if the buffer is full.
+     */
+    synchronized int appendAll (ByteBuffer records)
+    {
+        int added = countRecords(records.duplicate());
+
+        ensureCapacity(records.remaining());
+        buffer.put(records);
+        count += added;
+
+        return count;
+    }
+
+    /**
+     * Returns all stored records in their framed layout.
+     *
+     * @param drain Set to true to remove the records afterwards.
+     */
+    synchronized byte[] read (boolean drain)
+    {
+        if (buffer == null)
+            return new byte[0];
+
+        byte[] bytes = new byte[buffer.position()];
+
+        System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+
+        if (drain) {
+            clear();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Removes all records and releases the backing buffer.
+     */
+    synchronized void clear()
+    {
+        buffer = null;
+        count  = 0;
+    }
+
+    /**
+     * Returns the number of stored records.
+     */
+    synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Grow the backing buffer so that it can take the given amount of bytes.
+     *
+     * @param bytes The amount of bytes to write next.
+     *
+     * @throws IllegalStateException if the bytes exceed the max capacity.
+     */
+    private void ensureCapacity (int bytes)
+    {
+        int used = buffer != null ? buffer.position() : 0;
+
+        if (bytes > MAX_CAPACITY - used)
+            throw new IllegalStateException(
+                    "Record buffer full, max " + MAX_CAPACITY + " bytes");
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(Math.max(INITIAL_CAPACITY, bytes));
+            return;
+        }
+
+        if (buffer.remaining() >= bytes)
+            return;
+
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+
+        capacity = Math.min(capacity, MAX_CAPACITY);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    /**
+     * Validate the framing of the given records and count them.
+     *
+     * @param records Length-prefixed records.
+     *
+     * @throws IllegalArgumentException if a record exceeds the buffer.
+     */
+    private static int countRecords (ByteBuffer records)
+    {
+        int count = 0;
+
+        while (records.hasRemaining())
+        {
+            if (records.remaining() < HEADER_SIZE)
+                throw new IllegalArgumentException("Truncated record header");
+
+            int length = records.getInt();
+
+            if (length < 0 || length > records.remaining())
+                throw new IllegalArgumentException("Truncated record");
+
+            records.position(records.position() + length);
+            count++;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static android.content.Context.ALARM_SERVICE;
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Detects if the foreground service got killed without going through
+ * stopService(), e.g. by an OEM task killer or by removing the task, and
+ * restarts it with an exponential backoff. The service writes a heartbeat
+ * to the preferences, so that a kill can be detected and the downtime be
+ * estimated by the next process as well.
+ */
+final class ServiceMonitor {
+
+    // Action of the intent which restarts the service
+    static final String ACTION_RESTART = "de.appplant.cordova.plugin.background.RESTART";
+
+    // Time in ms between two heartbeats of the service
+    static final long HEARTBEAT_INTERVAL = 60 * 1000;
+
+    // Delay in ms of the first restart attempt
+    private static final long RESTART_BASE_DELAY = 5 * 1000;
+
+    // Max delay in ms between two restart attempts
+    private static final long RESTART_MAX_DELAY = 30 * 60 * 1000;
+
+    // Time in ms after which a running service resets the backoff
+    private static final long STABLE_TIME = 5 * 60 * 1000;
+
+    // Name of the preferences file
+    private static final String PREFS_NAME = "backgroundmode.monitor";
+
+    // Service is expected to run as the plugin started it
+    private static final String KEY_EXPECTED = "expected";
+
+    // Service has been created and not yet destroyed
+    private static final String KEY_ALIVE = "alive";
+
+    // Wall time of the last heartbeat
+    private static final String KEY_HEARTBEAT = "heartbeat";
+
+    // Wall time of the last detected kill or 0 if the service is back
+    private static final String KEY_KILLED_AT = "killedAt";
+
+    // Number of detected kills since the last report
+    private static final String KEY_KILLS = "kills";
+
+    // Number of restarts since the last report
+    private static final String KEY_RESTARTS = "restarts";
+
+    // Total downtime in ms since the last report
+    private static final String KEY_DOWNTIME = "downtime";
+
+    // Number of restart attempts without the service becoming stable
+    private static final String KEY_ATTEMPT = "attempt";
+
+    // Request code of the restart intent
+    private static final int RESTART_REQUEST_CODE = 1338;
+
+    // Flag indicates if the service runs in this process
+    private static boolean isAlive = false;
+
+    // Flag indicates if the task has been removed while the service runs
+    private static boolean isTaskRemoved = false;
+
+    // Realtime when the service was created in this process
+    private static long createdAt = 0;
+
+    private ServiceMonitor() {}
+
+    /**
+     * Set if the service is expected to run. A deliberate stop cancels the
+     * pending restart and resets the backoff, unless the task has been
+     * removed before and the activity only goes down along with it.
+     *
+     * @param context The context used to open the preferences.
+     * @param running Set to false before the service gets stopped.
+     */
+    static synchronized void expect (Context context, boolean running)
+    {
+        SharedPreferences.Editor editor = getPrefs(context).edit()
+                .putBoolean(KEY_EXPECTED, running);
+
+        if (running) {
+            editor.apply();
+            return;
+        }
+
+        if (!isTaskRemoved) {
+            editor.putInt(KEY_ATTEMPT, 0);
+            getAlarmManager(context).cancel(getRestartIntent(context));
+        }
+
+        // The process might get killed before the service is destroyed, the
+        // shutdown hooks give the asynchronous write time to hit the disk
+        editor.putBoolean(KEY_ALIVE, false).apply();
+    }
+
+    /**
+     * Returns true if the service runs in this process.
+     */
+    static synchronized boolean isAlive()
+    {
+        return isAlive;
+    }
+
+    /**
+     * Called when the service gets created. Accounts the downtime if the
+     * service had been killed before.
+     *
+     * @param context The context used to open the preferences.
+     */
+    static synchronized void onCreate (Context context)
+    {
+        detect(context);
+
+        SharedPreferences prefs = getPrefs(context);
+        long killedAt           = prefs.getLong(KEY_KILLED_AT, 0);
+        long now                = System.currentTimeMillis();
+        SharedPreferences.Editor editor = prefs.edit();
+
+        if (killedAt > 0) {
+            long downtime = Math.max(0, now - killedAt);
+
+            editor.putLong(KEY_DOWNTIME, prefs.getLong(KEY_DOWNTIME, 0) + downtime)
+                  .putLong(KEY_KILLED_AT, 0);
+
+            SessionHistory.record(context, SessionHistory.TYPE_SERVICE_KILL, downtime, 1);
+        }
+
+        isAlive   = true;
+        createdAt = SystemClock.elapsedRealtime();
+
+        editor.putBoolean(KEY_ALIVE, true)
+              .putLong(KEY_HEARTBEAT, now)
+              .apply();
+    }
+
+    /**
+     * Called by the service once per heartbeat interval.
+     *
+     * @param context The context used to open the preferences.
+     */
+    static synchronized void beat (Context context)
+    {
+        SharedPreferences.Editor editor = getPrefs(context).edit()
+                .putLong(KEY_HEARTBEAT, System.currentTimeMillis());
+
+        if (SystemClock.elapsedRealtime() - createdAt >= STABLE_TIME) {
+            editor.putInt(KEY_ATTEMPT, 0);
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * Called when the service has been restarted by the system or through
+     * the restart intent.
+     *
+     * @param context The context used to open the preferences.
+     */
+    static synchronized void onRestart (Context context)
+    {
+        SharedPreferences prefs = getPrefs(context);
+
+        prefs.edit()
+             .putBoolean(KEY_EXPECTED, true)
+             .putInt(KEY_RESTARTS, prefs.getInt(KEY_RESTARTS, 0) + 1)
+             .apply();
+    }
+
+    /**
+     * Called when the service gets destroyed. Counts as kill if the plugin
+     * did not stop the service on purpose.
+     *
+     * @param context The context used to open the preferences.
+     */
+    static synchronized void onDestroy (Context context)
+    {
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit().putBoolean(KEY_ALIVE, false);
+
+        isAlive = false;
+
+        if (prefs.getBoolean(KEY_EXPECTED, false)) {
+            editor.putInt(KEY_KILLS, prefs.getInt(KEY_KILLS, 0) + 1)
+                  .putLong(KEY_KILLED_AT, System.currentTimeMillis());
+            scheduleRestart(context, prefs, editor);
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * Called when the user removed the task of the app. The process might
+     * get killed right after, so the restart is scheduled upfront.
+     *
+     * @param context The context used to open the preferences.
+     */
+    static synchronized void onTaskRemoved (Context context)
+    {
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        if (prefs.getBoolean(KEY_EXPECTED, false)) {
+            isTaskRemoved = true;
+            scheduleRestart(context, prefs, editor);
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * Returns the kills, restarts and the downtime since the last report.
+     *
+     * @param context The context used to open the preferences.
+     * @param reset   Set to true to start counting again.
+     */
+    static synchronized JSONObject report (Context context, boolean reset)
+            throws JSONException
+    {
+        detect(context);
+
+        SharedPreferences prefs = getPrefs(context);
+        long killedAt           = prefs.getLong(KEY_KILLED_AT, 0);
+        long downtime           = prefs.getLong(KEY_DOWNTIME, 0);
+
+        if (killedAt > 0) {
+            downtime += Math.max(0, System.currentTimeMillis() - killedAt);
+        }
+
+        JSONObject json = new JSONObject()
+                .put("kills", prefs.getInt(KEY_KILLS, 0))
+                .put("restarts", prefs.getInt(KEY_RESTARTS, 0))
+                .put("downtimeMs", downtime)
+                .put("down", killedAt > 0)
+                .put("lastHeartbeat", prefs.getLong(KEY_HEARTBEAT, 0));
+
+        if (reset) {
+            // A still running downtime gets accounted from now on
+            prefs.edit()
+                 .putInt(KEY_KILLS, 0)
+                 .putInt(KEY_RESTARTS, 0)
+                 .putLong(KEY_DOWNTIME, 0)
+                 .putLong(KEY_KILLED_AT, killedAt > 0 ? System.currentTimeMillis() : 0)
+                 .apply();
+        }
+
+        return json;
+    }
+
+    /**
+     * Count a kill if the service was alive according to the preferences
+     * but doesn't run in this process, which means that the previous
+     * process got killed without the service being destroyed. The last
+     * heartbeat is taken as time of the kill.
+     *
+     * @param context The context used to open the preferences.
+     */
+    private static void detect (Context context)
+    {
+        SharedPreferences prefs = getPrefs(context);
+
+        if (isAlive || !prefs.getBoolean(KEY_ALIVE, false))
+            return;
+
+        prefs.edit()
+             .putBoolean(KEY_ALIVE, false)
+             .putInt(KEY_KILLS, prefs.getInt(KEY_KILLS, 0) + 1)
+             .putLong(KEY_KILLED_AT, prefs.getLong(KEY_HEARTBEAT, System.currentTimeMillis()))
+             .apply();
+    }
+
+    /**
+     * Schedule the restart of the service with an exponential backoff.
+     * Silent services can't be started from background on Android 8+.
+     * Starting with Android 12 only exact alarms allow to start a foreground
+     * service from background, so there is no restart without them.
+     *
+     * @param context The context used to get the alarm manager.
+     * @param prefs   The preferences with the current attempt.
+     * @param editor  The editor to store the next attempt.
+     */
+    private static void scheduleRestart (Context context, SharedPreferences prefs,
+                                         SharedPreferences.Editor editor)
+    {
+        boolean exact = WakeupReceiver.canScheduleExactAlarms(context);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && BackgroundMode.getSettings().optBoolean("silent", false))
+            return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !exact) {
+            DiagnosticLog.warn("monitor", "restart", "No restart without exact alarms", null);
+            return;
+        }
+
+        int attempt          = prefs.getInt(KEY_ATTEMPT, 0);
+        long delay           = Math.min(RESTART_BASE_DELAY << Math.min(attempt, 16), RESTART_MAX_DELAY);
+        long at              = SystemClock.elapsedRealtime() + delay;
+        AlarmManager am      = getAlarmManager(context);
+        PendingIntent intent = getRestartIntent(context);
+
+        if (!exact || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, intent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            am.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, intent);
+        } else {
+            am.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, intent);
+        }
+
+        editor.putInt(KEY_ATTEMPT, attempt + 1);
+    }
+
+    /**
+     * Returns the intent which restarts the service.
+     *
+     * @param context The context used to create the intent.
+     */
+    private static PendingIntent getRestartIntent (Context context)
+    {
+        Intent intent = new Intent(context, ForegroundService.class)
+                .setAction(ACTION_RESTART);
+        int flags     = PendingIntent.FLAG_UPDATE_CURRENT;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            return PendingIntent.getForegroundService(context, RESTART_REQUEST_CODE, intent, flags);
+
+        return PendingIntent.getService(context, RESTART_REQUEST_CODE, intent, flags);
+    }
+
+    /**
+     * Returns the alarm manager service.
+     *
+     * @param context The context used to get the service.
+     */
+    private static AlarmManager getAlarmManager (Context context)
+    {
+        return (AlarmManager) context.getSystemService(ALARM_SERVICE);
+    }
+
+    /**
+     * Returns the preferences of the monitor.
+     *
+     * @param context The context used to open the preferences.
+     */
+    private static SharedPreferences getPrefs (Context context)
+    {
+        return context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+    }
+}
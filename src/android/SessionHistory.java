@@ -0,0 +1,308 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History of the background sessions and notable events, kept as fixed-size
+ * binary records in a preallocated ring file. Writes go through NIO without
+ * syncing the file, so the history costs close to nothing while in
+ * background but survives the process. Opening the file and all writes
+ * happen in order on a single background thread, so that recording an
+ * event never blocks the main thread.
+ */
+final class SessionHistory {
+
+    // Ended background session, value is the duration and extra the CPU time
+    static final int TYPE_SESSION = 1;
+
+    // Service has been killed or disconnected unexpectedly
+    static final int TYPE_SERVICE_KILL = 2;
+
+    // Service has been restarted by the system
+    static final int TYPE_SERVICE_RESTART = 3;
+
+    // Failure event fired into the web view
+    static final int TYPE_FAILURE = 4;
+
+    // Shutdown hook has ended, value is the duration and extra the status
+    static final int TYPE_SHUTDOWN_HOOK = 5;
+
+    // Session has reached a wind-down stage, value is the stage
+    static final int TYPE_WIND_DOWN = 6;
+
+    // Name of the ring file
+    private static final String FILE_NAME = "backgroundmode.history";
+
+    // Identifies the file format
+    private static final int MAGIC = 0x42474d48;
+
+    // Size of the header holding the magic and the next sequence number
+    private static final int HEADER_SIZE = 16;
+
+    // Size of a record: seq, time, type, value and extra
+    static final int RECORD_SIZE = 32;
+
+    // Max number of records in the ring file
+    static final int CAPACITY = 1024;
+
+    // Max time in ms to wait for the pending writes when flushing
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    // Process-wide instance
+    private static SessionHistory instance;
+
+    // Writes the records in order
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(
+            task -> new Thread(task, "backgroundmode-history"));
+
+    // Reused to write a record
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    // Reused to write the header
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+    // Channel of the ring file
+    private final FileChannel channel;
+
+    // Sequence number of the next record
+    private long nextSeq;
+
+    /**
+     * Returns the process-wide instance.
+     *
+     * @param context The context used to find the files dir.
+     *
+     * @return null if the ring file could not be opened.
+     */
+    static synchronized SessionHistory get (Context context)
+    {
+        if (instance != null)
+            return instance;
+
+        try {
+            instance = new SessionHistory(new File(context.getFilesDir(), FILE_NAME));
+        } catch (IOException e) {
+            DiagnosticLog.warn("history", "open", "Could not open the session history", e);
+        }
+
+        return instance;
+    }
+
+    private SessionHistory (File file) throws IOException
+    {
+        long size = HEADER_SIZE + (long) CAPACITY * RECORD_SIZE;
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+
+        if (channel.size() != size || readInt(0) != MAGIC) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate((int) size), 0);
+            nextSeq = 0;
+            writeHeader();
+        } else {
+            ByteBuffer seq = ByteBuffer.allocate(8);
+            channel.read(seq, 8);
+            nextSeq = seq.getLong(0);
+        }
+    }
+
+    /**
+     * Record an event. The record gets written on the background thread.
+     *
+     * @param context The context used to find the files dir.
+     * @param type    The type of the record.
+     * @param value   The value of the record, e.g. a duration.
+     * @param extra   An additional value.
+     */
+    static void record (Context context, int type, long value, int extra)
+    {
+        Context app = context.getApplicationContext();
+        long time   = System.currentTimeMillis();
+
+        writer.execute(() -> {
+            SessionHistory history = get(app);
+
+            if (history != null) {
+                history.append(time, type, value, extra);
+            }
+        });
+    }
+
+    /**
+     * Write the pending records through to the storage device, e.g. before
+     * the process gets killed. Waits at most a second for the writes.
+     *
+     * @param context The context used to find the files dir.
+     */
+    static void flush (Context context)
+    {
+        Context app = context.getApplicationContext();
+
+        Future<?> done = writer.submit(() -> {
+            SessionHistory history = get(app);
+
+            if (history != null) {
+                history.flush();
+            }
+        });
+
+        try {
+            done.get(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            DiagnosticLog.warn("history", "flush", "Pending records not flushed", e);
+        }
+    }
+
+    /**
+     * Append a record and overwrite the oldest one if the file is full.
+     *
+     * @param time  The wall time of the event.
+     * @param type  The type of the record.
+     * @param value The value of the record, e.g. a duration.
+     * @param extra An additional value.
+     */
+    synchronized void append (long time, int type, long value, int extra)
+    {
+        long seq = nextSeq;
+
+        record.clear();
+        record.putLong(seq)
+                .putLong(time)
+                .putInt(type)
+                .putLong(value)
+                .putInt(extra)
+                .flip();
+
+        try {
+            channel.write(record, position(seq));
+            nextSeq = seq + 1;
+            writeHeader();
+        } catch (IOException e) {
+            DiagnosticLog.warn("history", "write", "Could not write to the session history", e);
+        }
+    }
+
+    /**
+     * Write the records through to the storage device, e.g. before the
+     * process gets killed.
+     */
+    synchronized void flush()
+    {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            DiagnosticLog.warn("history", "flush", "Could not flush the session history", e);
+        }
+    }
+
+    /**
+     * Read the records starting at the cursor, the oldest first.
+     *
+     * @param cursor The sequence number of the first record to read.
+     * @param limit  The max number of records to read.
+     *
+     * @return The records and the cursor for the next read.
+     */
+    synchronized JSONObject read (long cursor, int limit) throws JSONException
+    {
+        JSONArray records = new JSONArray();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        long seq          = Math.max(cursor, nextSeq - CAPACITY);
+
+        seq = Math.max(seq, 0);
+
+        for (; seq < nextSeq && records.length() < limit; seq++) {
+            buffer.clear();
+
+            try {
+                channel.read(buffer, position(seq));
+            } catch (IOException e) {
+                break;
+            }
+
+            if (buffer.getLong(0) != seq)
+                continue;
+
+            records.put(new JSONObject()
+                    .put("seq", seq)
+                    .put("time", buffer.getLong(8))
+                    .put("type", buffer.getInt(16))
+                    .put("value", buffer.getLong(20))
+                    .put("extra", buffer.getInt(28)));
+        }
+
+        return new JSONObject()
+                .put("records", records)
+                .put("cursor", seq);
+    }
+
+    /**
+     * Returns the position of the record in the file.
+     *
+     * @param seq The sequence number of the record.
+     */
+    private static long position (long seq)
+    {
+        return HEADER_SIZE + (seq % CAPACITY) * RECORD_SIZE;
+    }
+
+    /**
+     * Write the magic and the next sequence number.
+     */
+    private void writeHeader() throws IOException
+    {
+        header.clear();
+        header.putInt(MAGIC).putInt(0).putLong(nextSeq).flip();
+        channel.write(header, 0);
+    }
+
+    /**
+     * Read an int from the file.
+     *
+     * @param position The position of the int.
+     */
+    private int readInt (long position) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+
+        if (channel.read(buffer, position) < 4)
+            return 0;
+
+        return buffer.getInt(0);
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.PluginResult.Status;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the registered flush hooks in parallel under a time budget before the
+ * process gets killed. Native hooks are plain runnables, JS hooks get
+ * notified through their callback and report back with done().
+ */
+public final class ShutdownCoordinator {
+
+    // Hook finished in time
+    static final int STATUS_DONE = 0;
+
+    // Hook threw an exception
+    static final int STATUS_FAILED = 1;
+
+    // Hook did not finish within the budget
+    static final int STATUS_TIMEOUT = 2;
+
+    // Hook was not run as the web view is going away
+    static final int STATUS_SKIPPED = 3;
+
+    // Default time budget in ms for all hooks
+    static final long DEFAULT_BUDGET = 2000;
+
+    // Hard cap in ms for the time the main thread waits for the hooks,
+    // kept well below the 5 s after which Android reports an ANR
+    static final long MAX_MAIN_THREAD_WAIT = 3000;
+
+    // Native hooks by name
+    private static final Map<String, Runnable> nativeHooks = new LinkedHashMap<>();
+
+    // Callbacks of the JS hooks by name
+    private static final Map<String, CallbackContext> jsHooks = new LinkedHashMap<>();
+
+    // JS hooks of the running shutdown by name
+    private static final Map<String, Hook> pendingJsHooks = new ConcurrentHashMap<>();
+
+    // Flag indicates if the hooks have been run already
+    private static boolean hasRun = false;
+
+    private ShutdownCoordinator() {}
+
+    /**
+     * Register a native hook which gets run before the process is killed.
+     *
+     * @param name The name of the hook.
+     * @param hook The hook to run.
+     */
+    public static synchronized void register (String name, Runnable hook)
+    {
+        nativeHooks.put(name, hook);
+    }
+
+    /**
+     * Remove a native hook.
+     *
+     * @param name The name of the hook.
+     */
+    public static synchronized void unregister (String name)
+    {
+        nativeHooks.remove(name);
+    }
+
+    /**
+     * Register a JS hook which gets notified through its callback.
+     *
+     * @param name     The name of the hook.
+     * @param callback The callback to notify the hook.
+     */
+    static synchronized void registerJs (String name, CallbackContext callback)
+    {
+        jsHooks.put(name, callback);
+    }
+
+    /**
+     * Called by a JS hook once it's done.
+     *
+     * @param name The name of the hook.
+     */
+    static void jsDone (String name)
+    {
+        Hook hook = pendingJsHooks.get(name);
+
+        if (hook != null) {
+            hook.end(STATUS_DONE);
+        }
+    }
+
+    /**
+     * Run the hooks on a separate thread and wait for them at most for the
+     * budget, capped to MAX_MAIN_THREAD_WAIT so that the main thread does
+     * not block until an ANR.
+     *
+     * @param context The context used to record the results.
+     * @param budget  The time budget in ms for all hooks.
+     * @param withJs  Set to false if the web view can't answer anymore.
+     */
+    static void runDetached (Context context, long budget, boolean withJs)
+    {
+        long wait = Math.min(budget, MAX_MAIN_THREAD_WAIT);
+
+        Thread thread = new Thread(() -> run(context, budget, withJs),
+                "backgroundmode-shutdown");
+
+        thread.start();
+
+        try {
+            thread.join(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run all hooks in parallel and wait at most for the budget. The hooks
+     * are run only once per process. The result of each hook is recorded
+     * as soon as it ends with its index in the extra value, native hooks in
+     * the order of their registration first.
+     *
+     * @param context The context used to record the results.
+     * @param budget  The time budget in ms for all hooks.
+     * @param withJs  Set to false if the web view can't answer anymore.
+     */
+    static void run (Context context, long budget, boolean withJs)
+    {
+        Map<String, Runnable> hooks;
+        Map<String, CallbackContext> callbacks;
+
+        synchronized (ShutdownCoordinator.class)
+        {
+            if (hasRun)
+                return;
+
+            hasRun    = true;
+            hooks     = new LinkedHashMap<>(nativeHooks);
+            callbacks = new LinkedHashMap<>(jsHooks);
+        }
+
+        Tracer.begin("shutdown");
+
+        List<Hook> running = new ArrayList<>();
+        long deadline      = SystemClock.elapsedRealtime() + budget;
+
+        for (Map.Entry<String, Runnable> entry : hooks.entrySet()) {
+            running.add(Hook.start(context, entry.getKey(), running.size(), entry.getValue()));
+        }
+
+        for (Map.Entry<String, CallbackContext> entry : callbacks.entrySet()) {
+            String name = entry.getKey();
+            int index   = running.size();
+
+            running.add(withJs ? Hook.signal(context, name, index, entry.getValue())
+                               : Hook.skip(context, name, index));
+        }
+
+        for (Hook hook : running) {
+            hook.await(deadline);
+        }
+
+        SessionHistory.flush(context);
+        pendingJsHooks.clear();
+        Tracer.end();
+    }
+
+    /**
+     * A single running hook. Its result gets recorded as soon as it ends,
+     * so that hooks which finished in time leave a record even if the
+     * process gets killed while others are still running.
+     */
+    private static final class Hook
+    {
+        // The name of the hook
+        final String name;
+
+        // The index of the hook
+        final int index;
+
+        // The context used to record the result
+        final Context context;
+
+        // Realtime when the hook was started
+        final long startedAt = SystemClock.elapsedRealtime();
+
+        // Counted down once the hook has ended
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // Set once the result has been recorded
+        final AtomicBoolean ended = new AtomicBoolean();
+
+        private Hook (Context context, String name, int index)
+        {
+            this.context = context;
+            this.name    = name;
+            this.index   = index;
+        }
+
+        /**
+         * Run the native hook on its own thread.
+         */
+        static Hook start (Context context, String name, int index, Runnable runnable)
+        {
+            Hook hook = new Hook(context, name, index);
+
+            Thread thread = new Thread(() -> {
+                int status = STATUS_DONE;
+
+                try {
+                    runnable.run();
+                } catch (Exception e) {
+                    status = STATUS_FAILED;
+                    DiagnosticLog.error("shutdown", name, "Shutdown hook failed", e);
+                } finally {
+                    hook.end(status);
+                }
+            }, "backgroundmode-shutdown-" + name);
+
+            thread.start();
+
+            return hook;
+        }
+
+        /**
+         * Notify the JS hook through its callback.
+         */
+        static Hook signal (Context context, String name, int index, CallbackContext callback)
+        {
+            Hook hook        = new Hook(context, name, index);
+            PluginResult res = new PluginResult(Status.OK, name);
+
+            pendingJsHooks.put(name, hook);
+            res.setKeepCallback(true);
+            callback.sendPluginResult(res);
+
+            return hook;
+        }
+
+        /**
+         * Create a hook which is not run.
+         */
+        static Hook skip (Context context, String name, int index)
+        {
+            Hook hook = new Hook(context, name, index);
+
+            hook.end(STATUS_SKIPPED);
+
+            return hook;
+        }
+
+        /**
+         * Record the result of the hook. Only the first call has an effect.
+         *
+         * @param status The status of the hook.
+         */
+        void end (int status)
+        {
+            if (!ended.compareAndSet(false, true))
+                return;
+
+            long ms = SystemClock.elapsedRealtime() - startedAt;
+
+            DiagnosticLog.info("shutdown", name, "Ended with " + status + " after " + ms + " ms");
+            SessionHistory.record(context, SessionHistory.TYPE_SHUTDOWN_HOOK, ms, index << 8 | status);
+            latch.countDown();
+        }
+
+        /**
+         * Wait for the hook until the deadline and end it with a timeout
+         * if it is still running by then.
+         *
+         * @param deadline The realtime until to wait.
+         */
+        void await (long deadline)
+        {
+            long timeout = Math.max(0, deadline - SystemClock.elapsedRealtime());
+            boolean done;
+
+            try {
+                done = latch.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done = false;
+            }
+
+            if (!done) {
+                end(STATUS_TIMEOUT);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.ArrayDeque;
+
+/**
+ * Thin wrapper around android.os.Trace which is safe to call on every API
+ * level. The sections show up in systrace and Perfetto captures.
+ */
+final class Tracer {
+
+    // Prefix of all section names
+    private static final String PREFIX = "BackgroundMode:";
+
+    // Max length of a section name accepted by the platform
+    private static final int MAX_NAME_LENGTH = 127;
+
+    // Per thread flags of the open sections, true if passed to the platform
+    private static final ThreadLocal<ArrayDeque<Boolean>> open =
+            new ThreadLocal<ArrayDeque<Boolean>>() {
+                @Override
+                protected ArrayDeque<Boolean> initialValue()
+                {
+                    return new ArrayDeque<>();
+                }
+            };
+
+    private Tracer() {}
+
+    /**
+     * Returns false if no trace gets captured, which is only known for sure
+     * starting with Android 10.
+     */
+    static boolean isEnabled()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return Trace.isEnabled();
+
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * Begin a section on the current thread.
+     *
+     * @param name The name of the section.
+     */
+    static void begin (String name)
+    {
+        boolean enabled = isEnabled();
+
+        if (enabled) {
+            Trace.beginSection(sectionName(name));
+        }
+
+        open.get().push(enabled);
+    }
+
+    /**
+     * Begin a section whose name is only put together if a trace gets
+     * captured, e.g. for sections named after the action of every exec.
+     *
+     * @param name   The first part of the name of the section.
+     * @param detail The second part of the name of the section.
+     */
+    static void begin (String name, String detail)
+    {
+        boolean enabled = isEnabled();
+
+        if (enabled) {
+            Trace.beginSection(sectionName(name + detail));
+        }
+
+        open.get().push(enabled);
+    }
+
+    /**
+     * End the last section begun on the current thread. Sections which were
+     * skipped as no trace got captured are not ended on the platform.
+     */
+    static void end()
+    {
+        Boolean begun = open.get().poll();
+
+        if (begun != null && begun) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Begin a section which may end on another thread.
+     *
+     * @param name   The name of the section.
+     * @param cookie Identifies the section when it ends.
+     */
+    static void beginAsync (String name, int cookie)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(sectionName(name), cookie);
+        }
+    }
+
+    /**
+     * End a section begun with beginAsync.
+     *
+     * @param name   The name of the section.
+     * @param cookie Identifies the section.
+     */
+    static void endAsync (String name, int cookie)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(sectionName(name), cookie);
+        }
+    }
+
+    /**
+     * Returns the prefixed and truncated section name.
+     *
+     * @param name The name of the section.
+     */
+    private static String sectionName (String name)
+    {
+        String section = PREFIX + name;
+
+        if (section.length() > MAX_NAME_LENGTH)
+            return section.substring(0, MAX_NAME_LENGTH);
+
+        return section;
+    }
+}
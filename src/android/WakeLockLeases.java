@@ -0,0 +1,262 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Named and timed leases on the partial wake lock of the lease owner.
+ * Leases are counted per tag and the wake lock is only held while at least
+ * one lease is active.
+ */
+class WakeLockLeases {
+
+    // Timeout of a lease if none was specified
+    static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+    // Upper bound for the timeout of a lease
+    static final long MAX_TIMEOUT = 30 * 60 * 1000;
+
+    // Process-wide instance
+    private static WakeLockLeases instance;
+
+    // Used to time out the leases
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Active leases by tag, the oldest first
+    private final Map<String, ArrayDeque<Lease>> leases = new HashMap<>();
+
+    // Total held time in ms of all released leases by tag
+    private final Map<String, Long> heldTimes = new HashMap<>();
+
+    // Owns the underlying wake lock
+    private final WakeLockManager wakeLocks;
+
+    // Number of active leases
+    private int count = 0;
+
+    /**
+     * Returns the process-wide instance.
+     *
+     * @param context The context used to get the power service.
+     */
+    static synchronized WakeLockLeases get (Context context)
+    {
+        if (instance == null) {
+            instance = new WakeLockLeases(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    private WakeLockLeases (Context context)
+    {
+        wakeLocks = WakeLockManager.get(context);
+    }
+
+    /**
+     * Acquire a lease which is released at the latest after the timeout.
+     *
+     * @param tag     The name of the lease.
+     * @param timeout The timeout in ms, DEFAULT_TIMEOUT if not positive.
+     *
+     * @return The number of active leases for the tag.
+     */
+    synchronized int acquire (String tag, long timeout)
+    {
+        return leases.get(acquireLease(tag, timeout).tag).size();
+    }
+
+    /**
+     * Acquire a lease which is released at the latest after the timeout.
+     * Unlike acquire(), the lease itself is returned so that the caller can
+     * release exactly this one.
+     *
+     * @param tag     The name of the lease.
+     * @param timeout The timeout in ms, DEFAULT_TIMEOUT if not positive.
+     *
+     * @return The acquired lease.
+     */
+    synchronized Lease acquireLease (String tag, long timeout)
+    {
+        long ms     = timeout > 0 ? Math.min(timeout, MAX_TIMEOUT) : DEFAULT_TIMEOUT;
+        Lease lease = new Lease(tag);
+        ArrayDeque<Lease> queue = leases.get(tag);
+
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            leases.put(tag, queue);
+        }
+
+        queue.add(lease);
+        count++;
+
+        // The wake lock is not reference counted, so acquiring it again
+        // extends its timeout beyond the end of every active lease
+        wakeLocks.acquire(BackgroundSession.LEASE_LOCK,
+                WakeLockManager.PARTIAL, MAX_TIMEOUT);
+
+        handler.postDelayed(lease, ms);
+
+        return lease;
+    }
+
+    /**
+     * Release the oldest lease of the tag.
+     *
+     * @param tag The name of the lease.
+     *
+     * @return The time in ms the lease was held or -1 if there was none.
+     */
+    synchronized long release (String tag)
+    {
+        ArrayDeque<Lease> queue = leases.get(tag);
+
+        if (queue == null || queue.isEmpty())
+            return -1;
+
+        return end(queue.peek());
+    }
+
+    /**
+     * Release the given lease.
+     *
+     * @param lease The lease returned by acquireLease.
+     *
+     * @return The time in ms the lease was held or -1 if it has already
+     *         been released or timed out.
+     */
+    synchronized long release (Lease lease)
+    {
+        ArrayDeque<Lease> queue = leases.get(lease.tag);
+
+        if (queue == null || !queue.contains(lease))
+            return -1;
+
+        return end(lease);
+    }
+
+    /**
+     * Release all leases, e.g. when the plugin gets destroyed.
+     */
+    synchronized void releaseAll()
+    {
+        for (ArrayDeque<Lease> queue : leases.values()) {
+            while (!queue.isEmpty()) {
+                end(queue.peek());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of active leases.
+     */
+    synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the active leases and the total held time by tag.
+     */
+    synchronized JSONObject toJSON() throws JSONException
+    {
+        JSONObject active = new JSONObject();
+        JSONObject held   = new JSONObject();
+        long now          = SystemClock.elapsedRealtime();
+
+        for (Map.Entry<String, ArrayDeque<Lease>> entry : leases.entrySet()) {
+            ArrayDeque<Lease> queue = entry.getValue();
+
+            if (!queue.isEmpty()) {
+                active.put(entry.getKey(), new JSONObject()
+                        .put("count", queue.size())
+                        .put("heldMs", now - queue.peek().acquiredAt));
+            }
+        }
+
+        for (Map.Entry<String, Long> entry : heldTimes.entrySet()) {
+            held.put(entry.getKey(), entry.getValue());
+        }
+
+        return new JSONObject()
+                .put("held", wakeLocks.isHeld(BackgroundSession.LEASE_LOCK))
+                .put("active", active)
+                .put("totalHeldMs", held);
+    }
+
+    /**
+     * Release the lease and the wake lock if it was the last one.
+     *
+     * @param lease The lease to release.
+     *
+     * @return The time in ms the lease was held.
+     */
+    private long end (Lease lease)
+    {
+        long heldMs = SystemClock.elapsedRealtime() - lease.acquiredAt;
+        Long total  = heldTimes.get(lease.tag);
+
+        handler.removeCallbacks(lease);
+        leases.get(lease.tag).remove(lease);
+        heldTimes.put(lease.tag, (total == null ? 0 : total) + heldMs);
+
+        if (--count == 0) {
+            wakeLocks.release(BackgroundSession.LEASE_LOCK);
+        }
+
+        return heldMs;
+    }
+
+    /**
+     * A single lease which releases itself once timed out.
+     */
+    final class Lease implements Runnable
+    {
+        // The name of the lease
+        final String tag;
+
+        // Realtime when the lease was acquired
+        final long acquiredAt = SystemClock.elapsedRealtime();
+
+        Lease (String tag)
+        {
+            this.tag = tag;
+        }
+
+        @Override
+        public void run()
+        {
+            release(this);
+        }
+    }
+}
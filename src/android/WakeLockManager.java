@@ -0,0 +1,254 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.content.Context.POWER_SERVICE;
+
+/**
+ * Process-wide owner of all wake locks of the plugin. Every owner gets its
+ * own reusable lock with a distinct tag, so that the battery usage can be
+ * attributed in dumpsys, and its acquire count and held time are tracked.
+ */
+final class WakeLockManager {
+
+    // Keeps the CPU running
+    static final int PARTIAL = PowerManager.PARTIAL_WAKE_LOCK;
+
+    // Turns the screen on
+    @SuppressWarnings("deprecation")
+    static final int SCREEN = PowerManager.SCREEN_DIM_WAKE_LOCK
+            | PowerManager.ACQUIRE_CAUSES_WAKEUP;
+
+    // Prefix of the wake lock tags
+    private static final String TAG_PREFIX = "backgroundmode:";
+
+    // Process-wide instance
+    private static WakeLockManager instance;
+
+    // Used to create the wake locks
+    private final PowerManager pm;
+
+    // Wake locks by owner
+    private final Map<String, Lock> locks = new HashMap<>();
+
+    /**
+     * Returns the process-wide instance.
+     *
+     * @param context The context used to get the power service.
+     */
+    static synchronized WakeLockManager get (Context context)
+    {
+        if (instance == null) {
+            instance = new WakeLockManager(context.getApplicationContext());
+        }
+
+        return instance;
+    }
+
+    private WakeLockManager (Context context)
+    {
+        pm = (PowerManager) context.getSystemService(POWER_SERVICE);
+    }
+
+    /**
+     * Acquire the wake lock of the owner. The lock gets reused, acquiring
+     * it again only renews the timeout.
+     *
+     * @param owner   The owner of the wake lock.
+     * @param level   PARTIAL or SCREEN.
+     * @param timeout The timeout in ms or 0 to hold it until released.
+     */
+    @SuppressLint("WakelockTimeout")
+    synchronized void acquire (String owner, int level, long timeout)
+    {
+        Lock lock = getLock(owner, level);
+        long now  = SystemClock.elapsedRealtime();
+
+        lock.stop(now);
+
+        if (timeout > 0) {
+            lock.wakeLock.acquire(timeout);
+        } else {
+            lock.wakeLock.acquire();
+        }
+
+        lock.acquires++;
+        lock.acquiredAt = now;
+        lock.timeout    = timeout;
+
+        Metrics.increment(Metrics.WAKE_LOCK_ACQUIRES);
+        BackgroundSession.wakeLockAcquired(owner, timeout);
+    }
+
+    /**
+     * Release the wake lock of the owner if held.
+     *
+     * @param owner The owner of the wake lock.
+     */
+    synchronized void release (String owner)
+    {
+        Lock lock = locks.get(owner);
+
+        if (lock == null || lock.acquiredAt == 0)
+            return;
+
+        lock.stop(SystemClock.elapsedRealtime());
+
+        if (lock.wakeLock.isHeld()) {
+            lock.wakeLock.release();
+        }
+
+        BackgroundSession.wakeLockReleased(owner);
+    }
+
+    /**
+     * Release all wake locks, e.g. before the process gets killed.
+     */
+    synchronized void releaseAll()
+    {
+        for (String owner : locks.keySet()) {
+            release(owner);
+        }
+    }
+
+    /**
+     * Returns true if the wake lock of the owner is held.
+     *
+     * @param owner The owner of the wake lock.
+     */
+    synchronized boolean isHeld (String owner)
+    {
+        Lock lock = locks.get(owner);
+
+        return lock != null && lock.wakeLock.isHeld();
+    }
+
+    /**
+     * Returns the tag, acquire count and held time by owner.
+     */
+    synchronized JSONObject toJSON() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        long now        = SystemClock.elapsedRealtime();
+
+        for (Map.Entry<String, Lock> entry : locks.entrySet()) {
+            Lock lock = entry.getValue();
+
+            json.put(entry.getKey(), new JSONObject()
+                    .put("tag", TAG_PREFIX + entry.getKey())
+                    .put("held", lock.wakeLock.isHeld())
+                    .put("acquires", lock.acquires)
+                    .put("heldMs", lock.heldTime(now)));
+        }
+
+        return json;
+    }
+
+    /**
+     * Returns the wake lock of the owner, created on first use or if the
+     * level has changed.
+     *
+     * @param owner The owner of the wake lock.
+     * @param level The level of the wake lock.
+     */
+    private Lock getLock (String owner, int level)
+    {
+        Lock lock = locks.get(owner);
+
+        if (lock != null && lock.level == level)
+            return lock;
+
+        if (lock != null) {
+            release(owner);
+        }
+
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(level, TAG_PREFIX + owner);
+
+        wakeLock.setReferenceCounted(false);
+        lock = new Lock(wakeLock, level, lock);
+        locks.put(owner, lock);
+
+        return lock;
+    }
+
+    /**
+     * A reusable wake lock and its usage.
+     */
+    private static final class Lock
+    {
+        // The underlying wake lock
+        final PowerManager.WakeLock wakeLock;
+
+        // Level of the wake lock
+        final int level;
+
+        // Number of times the wake lock has been acquired
+        long acquires = 0;
+
+        // Total held time in ms of the finished holds
+        long total = 0;
+
+        // Realtime when the wake lock was acquired or 0 if not held
+        long acquiredAt = 0;
+
+        // Timeout in ms of the current hold or 0 if none
+        long timeout = 0;
+
+        Lock (PowerManager.WakeLock wakeLock, int level, Lock previous)
+        {
+            this.wakeLock = wakeLock;
+            this.level    = level;
+
+            if (previous != null) {
+                acquires = previous.acquires;
+                total    = previous.total;
+            }
+        }
+
+        void stop (long now)
+        {
+            total      = heldTime(now);
+            acquiredAt = 0;
+        }
+
+        long heldTime (long now)
+        {
+            if (acquiredAt == 0)
+                return total;
+
+            long held = now - acquiredAt;
+
+            return total + (timeout > 0 ? Math.min(held, timeout) : held);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+import static android.content.Context.ALARM_SERVICE;
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Wakes up the device at scheduled times through the alarm manager, as JS
+ * timers get throttled or frozen in background. The schedules are kept in
+ * the preferences, so that they can be listed and cancelled from any
+ * process and armed again after a reboot. Once an alarm fires, the screen
+ * gets turned on and the listener takes care of the keyguard and the event.
+ */
+public class WakeupReceiver extends BroadcastReceiver {
+
+    /**
+     * Gets notified about every fired wake-up.
+     */
+    interface Listener
+    {
+        /**
+         * Called on the main thread when the wake-up is due.
+         *
+         * @param wakeup The schedule with its id, at, unlock and
+         *               moveToForeground properties.
+         */
+        void onWakeup (JSONObject wakeup);
+    }
+
+    // Action of the intents fired by the alarm manager
+    private static final String ACTION_WAKEUP = "de.appplant.cordova.plugin.background.WAKEUP";
+
+    // Name of the preferences file
+    private static final String PREFS_NAME = "backgroundmode.wakeups";
+
+    // Key of the last used ID
+    private static final String KEY_LAST_ID = "lastId";
+
+    // Prefix of the keys of the schedules
+    private static final String KEY_PREFIX = "wakeup.";
+
+    // Time in ms the screen is kept on after a wake-up
+    private static final long SCREEN_TIMEOUT = 1000;
+
+    // Time in ms after a wake-up which did not fire counts as lost, as
+    // inexact alarms can be deferred while the device is idle
+    private static final long STALE_TIME = 60 * 60 * 1000;
+
+    // Receives the fired wake-ups
+    private static volatile Listener listener;
+
+    /**
+     * Set the listener which receives the fired wake-ups.
+     *
+     * @param wakeupListener The listener or null to remove it.
+     */
+    static void setListener (Listener wakeupListener)
+    {
+        listener = wakeupListener;
+    }
+
+    /**
+     * Schedule a wake-up. Wake-ups which bring up the app are scheduled as
+     * alarm clock, all others as exact alarm allowed while idle. Without
+     * the permission for exact alarms the wake-up falls back to an inexact
+     * one.
+     *
+     * @param context          The context used to get the alarm manager.
+     * @param at               The wall time in ms of the wake-up.
+     * @param unlock           Set to true to unlock the device.
+     * @param moveToForeground Set to true to bring the app to foreground.
+     *
+     * @return The schedule with its ID.
+     */
+    static synchronized JSONObject schedule (Context context, long at,
+                                             boolean unlock, boolean moveToForeground)
+            throws JSONException
+    {
+        SharedPreferences prefs = getPrefs(context);
+        int id                  = prefs.getInt(KEY_LAST_ID, 0) + 1;
+
+        JSONObject wakeup = new JSONObject()
+                .put("id", id)
+                .put("at", at)
+                .put("unlock", unlock)
+                .put("moveToForeground", moveToForeground);
+
+        arm(context, wakeup);
+
+        prefs.edit()
+             .putInt(KEY_LAST_ID, id)
+             .putString(KEY_PREFIX + id, wakeup.toString())
+             .apply();
+
+        return wakeup;
+    }
+
+    /**
+     * Set the alarm of the wake-up and store in its exact property if the
+     * alarm is exact.
+     *
+     * @param context The context used to get the alarm manager.
+     * @param wakeup  The schedule of the wake-up.
+     */
+    private static void arm (Context context, JSONObject wakeup) throws JSONException
+    {
+        long at                  = wakeup.getLong("at");
+        boolean unlock           = wakeup.optBoolean("unlock");
+        boolean moveToForeground = wakeup.optBoolean("moveToForeground");
+        boolean exact            = canScheduleExactAlarms(context);
+        PendingIntent intent     = getWakeupIntent(context, wakeup.getInt("id"));
+        AlarmManager am          = getAlarmManager(context);
+
+        wakeup.put("exact", exact);
+
+        if (!exact) {
+            setInexact(am, at, intent);
+        } else if ((unlock || moveToForeground)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            am.setAlarmClock(new AlarmManager.AlarmClockInfo(at, null), intent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            am.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, at, intent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            am.setExact(AlarmManager.RTC_WAKEUP, at, intent);
+        } else {
+            am.set(AlarmManager.RTC_WAKEUP, at, intent);
+        }
+    }
+
+    /**
+     * Arm the stored wake-ups again as all alarms are gone after a reboot.
+     * Wake-ups which were due while the device was off are dropped.
+     *
+     * @param context The context used to get the alarm manager.
+     */
+    static synchronized void rearm (Context context)
+    {
+        SharedPreferences prefs         = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        long now                        = System.currentTimeMillis();
+
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(KEY_PREFIX))
+                continue;
+
+            try {
+                JSONObject wakeup = new JSONObject((String) entry.getValue());
+
+                if (wakeup.getLong("at") < now) {
+                    editor.remove(entry.getKey());
+                } else {
+                    arm(context, wakeup);
+                    editor.putString(entry.getKey(), wakeup.toString());
+                }
+            } catch (JSONException | ClassCastException e) {
+                DiagnosticLog.warn("wakeup", "parse", "Corrupt schedule " + entry.getKey(), e);
+                editor.remove(entry.getKey());
+            }
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * Cancel the scheduled wake-up.
+     *
+     * @param context The context used to get the alarm manager.
+     * @param id      The ID of the wake-up.
+     *
+     * @return false if there was no such wake-up.
+     */
+    static synchronized boolean cancel (Context context, int id)
+    {
+        SharedPreferences prefs = getPrefs(context);
+
+        if (!prefs.contains(KEY_PREFIX + id))
+            return false;
+
+        getAlarmManager(context).cancel(getWakeupIntent(context, id));
+        prefs.edit().remove(KEY_PREFIX + id).apply();
+
+        return true;
+    }
+
+    /**
+     * Returns the pending wake-ups. Wake-ups which should have fired long
+     * ago got lost, e.g. as the app was force stopped, and are dropped
+     * just like corrupt entries.
+     *
+     * @param context The context used to open the preferences.
+     */
+    static synchronized JSONArray list (Context context)
+    {
+        JSONArray wakeups               = new JSONArray();
+        SharedPreferences prefs         = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        long staleBefore                = System.currentTimeMillis() - STALE_TIME;
+
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(KEY_PREFIX))
+                continue;
+
+            JSONObject wakeup;
+
+            try {
+                wakeup = new JSONObject((String) entry.getValue());
+            } catch (JSONException | ClassCastException e) {
+                DiagnosticLog.warn("wakeup", "parse", "Corrupt schedule " + entry.getKey(), e);
+                editor.remove(entry.getKey());
+                continue;
+            }
+
+            if (wakeup.optLong("at") < staleBefore) {
+                editor.remove(entry.getKey());
+            } else {
+                wakeups.put(wakeup);
+            }
+        }
+
+        editor.apply();
+
+        return wakeups;
+    }
+
+    /**
+     * Called by the alarm manager when a wake-up is due and by the system
+     * once the device has booted.
+     */
+    @Override
+    public void onReceive (Context context, Intent intent)
+    {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            rearm(context);
+            return;
+        }
+
+        int id                  = intent.getIntExtra("id", 0);
+        JSONObject wakeup       = remove(context, id);
+        Listener wakeupListener = listener;
+
+        if (wakeup == null)
+            return;
+
+        turnScreenOn(context);
+
+        if (wakeupListener != null) {
+            wakeupListener.onWakeup(wakeup);
+        } else if (wakeup.optBoolean("unlock") || wakeup.optBoolean("moveToForeground")) {
+            launchApp(context);
+        }
+    }
+
+    /**
+     * Remove the schedule of the fired wake-up.
+     *
+     * @param context The context used to open the preferences.
+     * @param id      The ID of the wake-up.
+     *
+     * @return The schedule or null if it has been cancelled.
+     */
+    private static synchronized JSONObject remove (Context context, int id)
+    {
+        SharedPreferences prefs = getPrefs(context);
+        String json             = prefs.getString(KEY_PREFIX + id, null);
+
+        if (json == null)
+            return null;
+
+        prefs.edit().remove(KEY_PREFIX + id).apply();
+
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            DiagnosticLog.warn("wakeup", "parse", "Corrupt schedule " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Turn the screen on for a short time.
+     *
+     * @param context The context used to get the power manager.
+     */
+    private static void turnScreenOn (Context context)
+    {
+        WakeLockManager.get(context).acquire(BackgroundSession.WAKEUP_LOCK,
+                WakeLockManager.SCREEN, SCREEN_TIMEOUT);
+    }
+
+    /**
+     * Start the app if it isn't running anymore.
+     *
+     * @param context The context used to start the activity.
+     */
+    private static void launchApp (Context context)
+    {
+        Intent intent = context.getPackageManager()
+                .getLaunchIntentForPackage(context.getPackageName());
+
+        if (intent == null)
+            return;
+
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        context.startActivity(intent);
+    }
+
+    /**
+     * Schedule an inexact alarm which is still allowed while idle.
+     *
+     * @param am     The alarm manager.
+     * @param at     The wall time in ms of the wake-up.
+     * @param intent The intent to fire.
+     */
+    private static void setInexact (AlarmManager am, long at, PendingIntent intent)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            am.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, at, intent);
+        } else {
+            am.set(AlarmManager.RTC_WAKEUP, at, intent);
+        }
+    }
+
+    /**
+     * Returns true if the app may schedule exact alarms, which requires a
+     * special permission starting with Android 12.
+     *
+     * @param context The context used to get the alarm manager.
+     */
+    static boolean canScheduleExactAlarms (Context context)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S)
+            return true;
+
+        return getAlarmManager(context).canScheduleExactAlarms();
+    }
+
+    /**
+     * Returns the intent which fires the wake-up.
+     *
+     * @param context The context used to create the intent.
+     * @param id      The ID of the wake-up.
+     */
+    private static PendingIntent getWakeupIntent (Context context, int id)
+    {
+        Intent intent = new Intent(context, WakeupReceiver.class)
+                .setAction(ACTION_WAKEUP)
+                .putExtra("id", id);
+        int flags     = PendingIntent.FLAG_UPDATE_CURRENT;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+
+        return PendingIntent.getBroadcast(context, id, intent, flags);
+    }
+
+    /**
+     * Returns the alarm manager service.
+     *
+     * @param context The context used to get the service.
+     */
+    private static AlarmManager getAlarmManager (Context context)
+    {
+        return (AlarmManager) context.getSystemService(ALARM_SERVICE);
+    }
+
+    /**
+     * Returns the preferences with the schedules.
+     *
+     * @param context The context used to open the preferences.
+     */
+    private static SharedPreferences getPrefs (Context context)
+    {
+        return context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+    }
+}
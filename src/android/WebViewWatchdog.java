@@ -0,0 +1,236 @@
+/*
+ Copyright 2013 Sebastián Katzer
+
+ Licensed to the Apache Software Foundation (ASF) under one
+ or more contributor license agreements.  See the NOTICE file
+ distributed with this work for additional information
+ regarding copyright ownership.  The ASF licenses this file
+ to you under the Apache License, Version 2.0 (the
+ "License"); you may not use this file except in compliance
+ with the License.  You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing,
+ software distributed under the License is distributed on an
+ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ KIND, either express or implied.  See the License for the
+ specific language governing permissions and limitations
+ under the License.
+ */
+
+package de.appplant.cordova.plugin.background;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Periodically pings the JS thread of the web view while in background and
+ * records the round-trip time. If the web view doesn't answer in time, the
+ * visibility workaround gets applied again and the stall is reported.
+ */
+class WebViewWatchdog {
+
+    /**
+     * Gets notified about stalls of the web view.
+     */
+    interface Listener
+    {
+        /**
+         * Called on the main thread if a ping wasn't answered in time.
+         *
+         * @param waited The time in ms since the ping was sent.
+         */
+        void onStall (long waited);
+    }
+
+    // Upper bounds in ms of the buckets of the round-trip times
+    private static final long[] BUCKETS = { 16, 50, 100, 250, 500, 1000, 5000 };
+
+    // Used to schedule the pings on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Count of round trips per bucket, the last one takes all above
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+
+    // Number of detected stalls
+    private final AtomicLong stalls = new AtomicLong();
+
+    // The web view to ping
+    private final WebView webView;
+
+    // Gets notified about stalls
+    private final Listener listener;
+
+    // Sends the next ping
+    private final Runnable ping = this::ping;
+
+    // Checks if the last ping has been answered in time
+    private final Runnable check = this::check;
+
+    // Time in ms between two pings
+    private long interval;
+
+    // Time in ms after an unanswered ping counts as stall
+    private long timeout;
+
+    // Sequence number of the last ping
+    private int seq = 0;
+
+    // Uptime when the pending ping was sent or 0 if none is pending
+    private long sentAt = 0;
+
+    // Round-trip time of the last answered ping
+    private volatile long lastRoundTrip = -1;
+
+    /**
+     * Create a watchdog if the view is a system web view.
+     *
+     * @param view     The view of the cordova web view.
+     * @param listener Gets notified about stalls.
+     *
+     * @return null if the web view can't be pinged.
+     */
+    static WebViewWatchdog create (View view, Listener listener)
+    {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return null;
+
+        if (!(view instanceof WebView))
+            return null;
+
+        return new WebViewWatchdog((WebView) view, listener);
+    }
+
+    private WebViewWatchdog (WebView webView, Listener listener)
+    {
+        this.webView  = webView;
+        this.listener = listener;
+    }
+
+    /**
+     * Start to ping the web view.
+     *
+     * @param interval Time in ms between two pings.
+     * @param timeout  Time in ms after an unanswered ping counts as stall.
+     */
+    void start (long interval, long timeout)
+    {
+        this.interval = interval;
+        this.timeout  = timeout;
+
+        stop();
+        handler.postDelayed(ping, interval);
+    }
+
+    /**
+     * Stop to ping the web view.
+     */
+    void stop()
+    {
+        handler.removeCallbacks(ping);
+        handler.removeCallbacks(check);
+        sentAt = 0;
+    }
+
+    /**
+     * Returns the histogram of the round-trip times and the stall count.
+     */
+    JSONObject toJSON() throws JSONException
+    {
+        JSONArray buckets = new JSONArray();
+
+        for (int i = 0; i < histogram.length(); i++) {
+            buckets.put(new JSONObject()
+                    .put("le", i < BUCKETS.length ? BUCKETS[i] : -1)
+                    .put("count", histogram.get(i)));
+        }
+
+        return new JSONObject()
+                .put("lastRoundTripMs", lastRoundTrip)
+                .put("stalls", stalls.get())
+                .put("histogram", buckets);
+    }
+
+    /**
+     * Send a ping unless the previous one is still pending.
+     */
+    private void ping()
+    {
+        handler.postDelayed(ping, interval);
+
+        if (sentAt != 0)
+            return;
+
+        final int pingSeq = ++seq;
+
+        sentAt = SystemClock.uptimeMillis();
+        webView.evaluateJavascript("0", value -> pong(pingSeq));
+        handler.postDelayed(check, timeout);
+    }
+
+    /**
+     * Record the round-trip time of the answered ping.
+     *
+     * @param pingSeq The sequence number of the ping.
+     */
+    private void pong (int pingSeq)
+    {
+        if (pingSeq != seq || sentAt == 0)
+            return;
+
+        long rtt = SystemClock.uptimeMillis() - sentAt;
+
+        sentAt        = 0;
+        lastRoundTrip = rtt;
+
+        handler.removeCallbacks(check);
+        histogram.incrementAndGet(bucketOf(rtt));
+        Metrics.set(Metrics.WEBVIEW_RTT_MS, rtt);
+    }
+
+    /**
+     * Report a stall and apply the visibility workaround again if the
+     * pending ping hasn't been answered. The ping is given up, so that the
+     * next one probes if the web view has recovered.
+     */
+    private void check()
+    {
+        if (sentAt == 0)
+            return;
+
+        long waited = SystemClock.uptimeMillis() - sentAt;
+
+        sentAt = 0;
+        stalls.incrementAndGet();
+        Metrics.increment(Metrics.WEBVIEW_STALLS);
+        BackgroundModeExt.dispatchVisible(webView);
+        listener.onStall(waited);
+    }
+
+    /**
+     * Returns the index of the bucket for the round-trip time.
+     *
+     * @param rtt The round-trip time in ms.
+     */
+    private static int bucketOf (long rtt)
+    {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (rtt <= BUCKETS[i])
+                return i;
+        }
+
+        return BUCKETS.length;
+    }
+}
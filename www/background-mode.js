@@ -20,7 +20,8 @@
 */
 
 var exec    = require('cordova/exec'),
-    channel = require('cordova/channel');
+    channel = require('cordova/channel'),
+    base64  = require('cordova/base64');
 
 /**
  * Activates the background mode. When activated the application
@@ -39,6 +40,10 @@ exports.enable = function()
         exports.fireEvent('enable');
     };
 
+    this._syncDefaults(true);
+    this._syncListeners(true);
+    this._isSyncing = true;
+
     cordova.exec(fn, null, 'BackgroundMode', 'enable', []);
 };
 
@@ -116,10 +121,7 @@ exports.setDefaults = function (overrides)
         }
     }
 
-    if (this._isAndroid)
-    {
-        cordova.exec(null, null, 'BackgroundMode', 'configure', [defaults, false]);
-    }
+    this._syncDefaults(false);
 };
 
 /**
@@ -148,7 +150,7 @@ exports.configure = function (options)
     this._mergeObjects(options, defaults);
     this._settings = options;
 
-    cordova.exec(null, null, 'BackgroundMode', 'configure', [options, true]);
+    this._sendPatch('settings', options);
 };
 
 /**
@@ -164,6 +166,75 @@ exports.disableWebViewOptimizations = function()
     }
 };
 
+/**
+ * Show the progress of a long-running job in the notification (Android only).
+ * Rapid updates are merged natively and applied at a capped frame rate.
+ *
+ * @param [ Number ] current The current value.
+ * @param [ Number ] max The maximum value (default: 100).
+ * @param [ Object ] options Set indeterminate to true for a progress without
+ *                           value and eta to a text with the time left.
+ *
+ * @return [ Void ]
+ */
+exports.setProgress = function (current, max, options)
+{
+    var opts = options || {};
+
+    if (!this._isAndroid)
+        return;
+
+    cordova.exec(null, null, 'BackgroundMode', 'progress',
+        [current || 0, max || 100, opts.indeterminate === true, opts.eta || null]);
+};
+
+/**
+ * Remove the progress from the notification (Android only).
+ *
+ * @return [ Void ]
+ */
+exports.clearProgress = function()
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'progress', []);
+    }
+};
+
+/**
+ * Add to a counter shown by the counterText template of the notification
+ * (Android only). The text is rendered natively at a capped frame rate.
+ *
+ * @param [ String ] name The name of the counter.
+ * @param [ Number ] delta The value to add (default: 1).
+ *
+ * @return [ Void ]
+ */
+exports.count = function (name, delta)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'count', [name, delta === undefined ? 1 : delta]);
+    }
+};
+
+/**
+ * Set a counter shown by the counterText template of the notification
+ * (Android only).
+ *
+ * @param [ String ] name The name of the counter.
+ * @param [ Number ] value The new value.
+ *
+ * @return [ Void ]
+ */
+exports.setCount = function (name, value)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'setCount', [name, value || 0]);
+    }
+};
+
 /**
  * Disables battery optimazation mode for the app.
  *
@@ -303,6 +374,23 @@ exports.openNotificationSettings = function()
     }
 };
 
+/**
+ * Gathers the battery optimization, notification, screen, overlay permission
+ * and autostart status in one call (Android only). The probes run
+ * concurrently and each one reports its value and the time it took.
+ *
+ * @param [ Function ] callback Invoked with the snapshot.
+ *
+ * @return [ Void ]
+ */
+exports.getDiagnostics = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundModeExt', 'diagnostics', []);
+    }
+};
+
 /**
  * Override the back button on Android to go to background
  * instead of closing the app.
@@ -361,6 +449,446 @@ exports.unlock = function()
     }
 };
 
+/**
+ * Schedule a native wake-up at a precise time, which doesn't depend on JS
+ * timers (Android only). The wakeup event fires with the schedule once
+ * it's due.
+ *
+ * @param [ Date|Number ] at The time of the wake-up.
+ * @param [ Object ] options Set unlock to true to unlock the device or
+ *                           moveToForeground to bring up the app.
+ * @param [ Function ] callback Invoked with the schedule and its id.
+ *
+ * @return [ Void ]
+ */
+exports.scheduleWakeup = function (at, options, callback)
+{
+    var time = at instanceof Date ? at.getTime() : at;
+
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundModeExt', 'scheduleWakeup', [time, options || {}]);
+    }
+};
+
+/**
+ * Cancel a scheduled wake-up (Android only).
+ *
+ * @param [ Number ] id The id of the wake-up.
+ *
+ * @return [ Void ]
+ */
+exports.cancelWakeup = function (id)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundModeExt', 'cancelWakeup', [id]);
+    }
+};
+
+/**
+ * List the pending wake-ups (Android only).
+ *
+ * @param [ Function ] callback Invoked with the list of schedules.
+ *
+ * @return [ Void ]
+ */
+exports.getScheduledWakeups = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundModeExt', 'wakeups', []);
+    }
+};
+
+/**
+ * Append a binary record to the native record buffer (Android only).
+ * The payload crosses the bridge as ArrayBuffer without any JSON encoding.
+ *
+ * @param [ ArrayBuffer ] buffer The record's payload.
+ * @param [ Function ] callback Invoked with the number of stored records.
+ * @param [ Function ] error Invoked with the error message, e.g. if the
+ *                           buffer has reached its max size of 8 MB.
+ *
+ * @return [ Void ]
+ */
+exports.appendRecord = function (buffer, callback, error)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, error, 'BackgroundMode', 'append', [buffer]);
+    }
+};
+
+/**
+ * Append many records at once (Android only). Each record has to be prefixed
+ * with its length as 32 bit big-endian integer.
+ *
+ * @param [ ArrayBuffer ] buffer The framed records.
+ * @param [ Function ] callback Invoked with the number of stored records.
+ * @param [ Function ] error Invoked with the error message, e.g. if the
+ *                           buffer has reached its max size of 8 MB.
+ *
+ * @return [ Void ]
+ */
+exports.appendRecords = function (buffer, callback, error)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, error, 'BackgroundMode', 'appendAll', [buffer]);
+    }
+};
+
+/**
+ * Read all records from the native record buffer (Android only).
+ *
+ * @param [ Function ] callback Invoked with an ArrayBuffer of framed records.
+ * @param [ Bool ] drain Set to true to remove the records afterwards.
+ *
+ * @return [ Void ]
+ */
+exports.readRecords = function (callback, drain)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'read', [drain === true]);
+    }
+    else
+    {
+        callback(new ArrayBuffer(0));
+    }
+};
+
+/**
+ * Remove all records from the native record buffer (Android only).
+ *
+ * @return [ Void ]
+ */
+exports.clearRecords = function()
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'clear', []);
+    }
+};
+
+/**
+ * Acquire a named lease which keeps the CPU awake (Android only). Leases are
+ * counted per tag and are released at the latest after the timeout.
+ *
+ * @param [ String ] tag The name of the lease.
+ * @param [ Number ] timeout The timeout in ms (default: 60000, max: 30 min).
+ * @param [ Function ] callback Invoked with the number of leases for the tag.
+ *
+ * @return [ Void ]
+ */
+exports.acquireWakeLock = function (tag, timeout, callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundModeExt', 'acquireLease', [tag, timeout || 0]);
+    }
+};
+
+/**
+ * Release the oldest lease of the tag (Android only).
+ *
+ * @param [ String ] tag The name of the lease.
+ * @param [ Function ] callback Invoked with the held time in ms or -1.
+ *
+ * @return [ Void ]
+ */
+exports.releaseWakeLock = function (tag, callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundModeExt', 'releaseLease', [tag]);
+    }
+};
+
+/**
+ * The active leases and their held times by tag (Android only).
+ *
+ * @param [ Function ] callback Invoked with the leases.
+ *
+ * @return [ Void ]
+ */
+exports.getLeases = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundModeExt', 'leases', []);
+    }
+};
+
+/**
+ * Acquire count and held time of all wake locks of the plugin by owner
+ * (Android only).
+ *
+ * @param [ Function ] callback Invoked with the stats.
+ *
+ * @return [ Void ]
+ */
+exports.getWakeLockStats = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundModeExt', 'wakelocks', []);
+    }
+};
+
+/**
+ * Run a CPU-heavy operation on native cores instead of the JS thread
+ * (Android only). Built-in operations are gzip, gunzip, deflate, inflate,
+ * sha256, base64 and minify.
+ *
+ * @param [ String ] operation The name of the operation.
+ * @param [ String|ArrayBuffer ] input The input, strings are UTF-8 encoded.
+ * @param [ Function ] callback Invoked with the result.
+ * @param [ Function ] error Invoked with the error message.
+ *
+ * @return [ Void ]
+ */
+exports.compute = function (operation, input, callback, error)
+{
+    var binary = input instanceof ArrayBuffer;
+
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, error, 'BackgroundMode', 'compute', [operation, input, binary]);
+    }
+};
+
+/**
+ * Run a CPU-heavy operation for each input, spread across the native cores
+ * (Android only). Failed inputs show up as { error: message }.
+ *
+ * @param [ String ] operation The name of the operation.
+ * @param [ Array ] inputs The strings or ArrayBuffers.
+ * @param [ Function ] callback Invoked with the results in input order.
+ * @param [ Function ] error Invoked with the error message.
+ *
+ * @return [ Void ]
+ */
+exports.computeBatch = function (operation, inputs, callback, error)
+{
+    var data = [], binary = [];
+
+    if (!this._isAndroid)
+        return;
+
+    if (inputs.length === 0)
+    {
+        callback([]);
+        return;
+    }
+
+    for (var i = 0; i < inputs.length; i++)
+    {
+        binary[i] = inputs[i] instanceof ArrayBuffer;
+        data[i]   = binary[i] ? base64.fromArrayBuffer(inputs[i]) : inputs[i];
+    }
+
+    // The results arrive as multipart message, one argument per result
+    cordova.exec(function () {
+        callback(Array.prototype.slice.call(arguments));
+    }, error, 'BackgroundMode', 'computeBatch', [operation, data, binary]);
+};
+
+/**
+ * Time in ms the native plugin added to the app start and the first enable.
+ *
+ * @param [ Function ] callback Invoked with the startup trace.
+ *
+ * @return [ Void ]
+ */
+exports.getStartupTrace = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'startup', []);
+    }
+};
+
+/**
+ * Counters and gauges recorded by the native plugin (Android only).
+ *
+ * @param [ Function ] callback Invoked with the metrics.
+ *
+ * @return [ Void ]
+ */
+exports.getMetrics = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'metrics', []);
+    }
+};
+
+/**
+ * End a run of the periodic job in silent mode (Android only). Has to be
+ * called by the listener of the 'job' event once its work is done, unless
+ * the listener calls the done function it got passed instead.
+ *
+ * @param [ Number ] id The ID of the run passed to the listener.
+ *
+ * @return [ Void ]
+ */
+exports.finishJob = function (id)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(null, null, 'BackgroundMode', 'finishJob', [id]);
+    }
+};
+
+/**
+ * Round-trip times and stalls of the web view measured by the watchdog
+ * while in background (Android only).
+ *
+ * @param [ Function ] callback Invoked with the statistics.
+ *
+ * @return [ Void ]
+ */
+exports.getWatchdogStats = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'watchdog', []);
+    }
+};
+
+/**
+ * Power and CPU accounting of the running and the last background session
+ * (Android only).
+ *
+ * @param [ Function ] callback Invoked with the report.
+ *
+ * @return [ Void ]
+ */
+exports.getSessionReport = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'session', []);
+    }
+};
+
+/**
+ * Kills, restarts and downtime of the background service since the last
+ * call, including kills of previous app processes (Android only).
+ *
+ * @param [ Function ] callback Invoked with the report.
+ *
+ * @return [ Void ]
+ */
+exports.getKillReport = function (callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'kills', [true]);
+    }
+};
+
+/**
+ * Read the entries of the native diagnostic log (Android only). The log
+ * keeps the last 512 entries in memory and is always on.
+ *
+ * @param [ Number ] cursor The cursor returned by the previous read or 0.
+ * @param [ Number ] limit The max number of entries to read (default: 100).
+ * @param [ Function ] callback Invoked with the entries, the next cursor and
+ *                              the number of entries dropped since the cursor.
+ *
+ * @return [ Void ]
+ */
+exports.readDiagnostics = function (cursor, limit, callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'diagnostics', [cursor || 0, limit || 100]);
+    }
+};
+
+/**
+ * Write the native diagnostic log to a file in the files dir of the app
+ * (Android only).
+ *
+ * @param [ Function ] callback Invoked with the path of the file.
+ * @param [ Function ] error Invoked if the file could not be written.
+ *
+ * @return [ Void ]
+ */
+exports.dumpDiagnostics = function (callback, error)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, error, 'BackgroundMode', 'dumpDiagnostics', []);
+    }
+};
+
+/**
+ * Read the history of background sessions and notable events like service
+ * kills, restarts and failures (Android only). The history survives the
+ * process and keeps the last 1024 records.
+ *
+ * @param [ Number ] cursor The cursor returned by the previous read or 0.
+ * @param [ Number ] limit The max number of records to read (default: 100).
+ * @param [ Function ] callback Invoked with the records and the next cursor.
+ *
+ * @return [ Void ]
+ */
+exports.readHistory = function (cursor, limit, callback)
+{
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'history', [cursor || 0, limit || 100]);
+    }
+};
+
+/**
+ * Run several plugin actions in sequence with a single bridge crossing
+ * (Android only). Each command names its action and optionally the service,
+ * which is BackgroundMode by default.
+ *
+ * @param [ Array<Object> ] commands List of {service, action, args} objects.
+ * @param [ Object ] options Set stopOnError to true to skip the commands
+ *                           after the first failed one.
+ * @param [ Function ] callback Invoked with the results of the commands.
+ *
+ * @return [ Void ]
+ */
+exports.batch = function (commands, options, callback)
+{
+    var opts = options || {};
+
+    if (this._isAndroid)
+    {
+        cordova.exec(callback, null, 'BackgroundMode', 'batch', [commands, opts.stopOnError === true]);
+    }
+};
+
+/**
+ * Register a hook to flush buffered data before the app gets closed through
+ * the close action of the notification (Android only). The hook receives a
+ * done function which has to be called within the shutdown budget.
+ *
+ * @param [ String ] name The name of the hook.
+ * @param [ Function ] fn The hook to invoke with the done function.
+ *
+ * @return [ Void ]
+ */
+exports.onShutdown = function (name, fn)
+{
+    var done = function() {
+        cordova.exec(null, null, 'BackgroundMode', 'shutdownDone', [name]);
+    };
+
+    if (this._isAndroid)
+    {
+        cordova.exec(function() { fn(done); }, null, 'BackgroundMode', 'shutdownHook', [name]);
+    }
+};
+
 /**
  * If the mode is enabled or disabled.
  *
@@ -430,6 +958,11 @@ exports.on = function (event, callback, scope)
     var item = [callback, scope || window];
 
     this._listener[event].push(item);
+
+    if (this._listener[event].length == 1)
+    {
+        this._syncListeners(false);
+    }
 };
 
 /**
@@ -457,6 +990,11 @@ exports.un = function (event, callback)
             break;
         }
     }
+
+    if (listener.length === 0)
+    {
+        this._syncListeners(false);
+    }
 };
 
 /**
@@ -466,6 +1004,15 @@ exports.un = function (event, callback)
  */
 exports._isEnabled = false;
 
+/**
+ * @private
+ *
+ * Flag indicates if the state has been sent to the native side with the
+ * first enable. Every later change gets synced right away, even while the
+ * enable call is still pending.
+ */
+exports._isSyncing = false;
+
 /**
  * @private
  *
@@ -473,6 +1020,14 @@ exports._isEnabled = false;
  */
 exports._isActive = false;
 
+/**
+ * @private
+ *
+ * Version and values of the defaults and the settings last sent to the
+ * native side.
+ */
+exports._synced = {};
+
 /**
  * @private
  *
@@ -495,7 +1050,20 @@ exports._defaults = {
     closeIcon:          'power',
     closeTitle:         'Close',
     showWhen:           true,
-    visibility:         undefined
+    chronometer:        false,
+    counterText:        '',
+    visibility:         undefined,
+    useJobScheduler:    false,
+    jobPeriod:          900000,
+    jobNetwork:         'none',
+    jobCharging:        false,
+    watchdogInterval:   0,
+    watchdogTimeout:    5000,
+    shutdownBudget:     2000,
+    maxBackgroundTime:  0,
+    maxWakeLockTime:    0,
+    maxIdleTime:        0,
+    windDownInterval:   60000
 };
 
 /**
@@ -522,6 +1090,116 @@ exports._mergeObjects = function (options, toMergeIn)
     return options;
 };
 
+/**
+ * @private
+ *
+ * Send the defaults to the native side once the plugin is in use. Until the
+ * mode gets enabled there is no need to load the native plugin at all.
+ *
+ * @param [ Bool ] force Set to true to send them even if not enabled yet.
+ *
+ * @return [ Void ]
+ */
+exports._syncDefaults = function (force)
+{
+    if (!this._isAndroid)
+        return;
+
+    if (!force && !this._isSyncing)
+        return;
+
+    this._sendPatch('defaults', this.getDefaults());
+};
+
+/**
+ * @private
+ *
+ * Send only the keys which have changed since the last call together with
+ * the version they are based on. If the native side knows another version,
+ * a full snapshot gets sent instead.
+ *
+ * @param [ String ] target Either 'defaults' or 'settings'.
+ * @param [ Object ] values The complete values.
+ *
+ * @return [ Void ]
+ */
+exports._sendPatch = function (target, values)
+{
+    var synced  = this._synced[target],
+        changes = {},
+        changed = !synced,
+        base    = synced ? synced.version : 0,
+        self    = this,
+        key;
+
+    for (key in values)
+    {
+        if (!synced || values[key] !== synced.values[key])
+        {
+            changes[key] = values[key] === undefined ? null : values[key];
+            changed      = true;
+        }
+    }
+
+    for (key in (synced ? synced.values : {}))
+    {
+        if (!values.hasOwnProperty(key))
+        {
+            changes[key] = null;
+            changed      = true;
+        }
+    }
+
+    if (!changed)
+        return;
+
+    this._synced[target] = { version: base + 1, values: this._mergeObjects({}, values) };
+
+    var resync = function() {
+        var latest = self._synced[target];
+
+        delete self._synced[target];
+
+        if (latest && base !== 0)
+        {
+            self._sendPatch(target, latest.values);
+        }
+    };
+
+    cordova.exec(null, resync, 'BackgroundMode', 'patch', [target, base, changes]);
+};
+
+/**
+ * @private
+ *
+ * Tell the native side for which events a listener has been registered,
+ * so that events without any listener do not cross the bridge.
+ *
+ * @param [ Bool ] force Set to true to send them even if not enabled yet.
+ *
+ * @return [ Void ]
+ */
+exports._syncListeners = function (force)
+{
+    var events = [];
+
+    if (!this._isAndroid)
+        return;
+
+    if (!force && !this._isSyncing)
+        return;
+
+    for (var event in this._listener)
+    {
+        if (this._listener[event].length > 0)
+        {
+            events.push(event);
+        }
+    }
+
+    cordova.exec(null, null, 'BackgroundMode', 'listen', [events]);
+};
+
 /**
  * @private
  *
@@ -539,6 +1217,8 @@ exports._setActive = function(value)
 
     this._isActive = value;
     this._settings = value ? this._mergeObjects({}, this._defaults) : {};
+
+    delete this._synced.settings;
 };
 
 /**
@@ -554,7 +1234,6 @@ exports._setActive = function(value)
 exports._pluginInitialize = function()
 {
     this._isAndroid = device.platform.match(/^android|amazon/i) !== null;
-    this.setDefaults({});
 
     if (device.platform == 'browser')
     {